@@ -2,13 +2,14 @@ import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 public class GameEngine {
-    public static final int LIMIT = 14;
-    public static final int SIZE = 4;
+    public static final int LIMIT = GameRules.LIMIT;
+    public static final int SIZE = GameRules.SIZE;
     final int[] board = new int[SIZE * SIZE];
-    Random random = new Random();
+    SplittableRandom random = new SplittableRandom();
+    private final GameRules.Result moveResult = new GameRules.Result();
 
     private String playerName;
     private int level = 1;
@@ -38,21 +39,11 @@ public class GameEngine {
     }
 
     /**
-     * Generate a new random value and determine the game status.
-     * @return true if the next round can be started, otherwise false.
+     * Put a new card on a random empty place.
      */
-    private boolean nextRound() {
-        if (isFull()) return false;
-        int i;
-
-        // Randomly find an empty place
-        do {
-            i = random.nextInt(SIZE * SIZE);
-        } while (board[i] > 0);
-
-        // Randomly generate a card based on the existing level, and assign it to the selected place
-        board[i] = random.nextInt(level) / 4 + 1;
-        return true;
+    private void nextRound() {
+        long packed = GameRules.spawn(Bitboard.pack(board), level, random);
+        Bitboard.unpack(packed, board);
     }
 
     public String serializeState() {
@@ -92,51 +83,42 @@ public class GameEngine {
         this.level = level;
     }
 
-    /**
-     * @return true if all blocks are occupied.
-     */
-    private boolean isFull() {
-        for (int v : board)
-            if (v == 0) return false;
-        return true;
-    }
-
     /**
      * Move and combine the cards based on the input direction
      * @param dir
      */
     public void moveMerge(String dir) {
         synchronized (board) {
-            combo = numOfTilesMoved = 0;
-
             // Determine the move direction
+            int direction;
             switch (dir.toUpperCase()) {
                 case "UP":
-                    moveUp();
+                    direction = Bitboard.UP;
                     break;
                 case "DOWN":
-                    moveDown();
+                    direction = Bitboard.DOWN;
                     break;
                 case "LEFT":
-                    moveLeft();
+                    direction = Bitboard.LEFT;
                     break;
                 case "RIGHT":
-                    moveRight();
+                    direction = Bitboard.RIGHT;
                     break;
                 default:
                     return; // Invalid direction
             }
 
-            // Calculate the new score
-            score += combo / 5 * 2;
-
-            // Determine whether the game is over or not
+            // Move, score, spawn the next card and decide on game over, see GameRules
+            GameRules.move(Bitboard.pack(board), direction, level, random, moveResult);
+            Bitboard.unpack(moveResult.board, board);
+            score += moveResult.scoreDelta;
+            combo = moveResult.combo;
+            level = moveResult.level;
+            numOfTilesMoved = moveResult.tilesMoved;
             if (numOfTilesMoved > 0) {
                 totalMoveCount++;
-                gameOver = level == LIMIT || !nextRound();
-            } else {
-                gameOver = isFull();
             }
+            gameOver = moveResult.gameOver;
 
             // Update the database if the game is over
             if (gameOver) {
@@ -149,73 +131,6 @@ public class GameEngine {
         }
     }
 
-    /**
-     * Move the values downward and merge them.
-     */
-    private void moveDown() {
-        for (int i = 0; i < SIZE; i++)
-            moveMerge(SIZE, SIZE * (SIZE - 1) + i, i);
-    }
-
-    /**
-     * Move the values upward and merge them.
-     */
-    private void moveUp() {
-        for (int i = 0; i < SIZE; i++)
-            moveMerge(-SIZE, i, SIZE * (SIZE - 1) + i);
-    }
-
-    /**
-     * Move the values rightward and merge them.
-     */
-    private void moveRight() {
-        for (int i = 0; i <= SIZE * (SIZE - 1); i += SIZE)
-            moveMerge(1, SIZE - 1 + i, i);
-    }
-
-    /**
-     * Move the values leftward and merge them.
-     */
-    private void moveLeft() {
-        for (int i = 0; i <= SIZE * (SIZE - 1); i += SIZE)
-            moveMerge(-1, i, SIZE - 1 + i);
-    }
-
-    /**
-     * Move and merge the values in a specific row or column.
-     * @param d - move distance
-     * @param s - the index of the first element in the row or column
-     * @param l - the index of the last element in the row or column.
-     */
-    private void moveMerge(int d, int s, int l) {
-        int v, j;
-        for (int i = s - d; i != l - d; i -= d) {
-            j = i;
-            if (board[j] <= 0) continue;
-            v = board[j];
-            board[j] = 0;
-            while (j + d != s && board[j + d] == 0)
-                j += d;
-
-            if (board[j + d] == 0) {
-                j += d;
-                board[j] = v;
-            } else {
-                while (j != s && board[j + d] == v) {
-                    j += d;
-                    board[j] = 0;
-                    v++;
-                    score++;
-                    combo++;
-                }
-                board[j] = v;
-                if (v > level) level = v;
-            }
-            if (i != j)
-                numOfTilesMoved++;
-        }
-    }
-
     public int getValue(int r, int c) {
         synchronized (board) {
             return board[r * SIZE + c];
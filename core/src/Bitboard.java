@@ -0,0 +1,179 @@
+/**
+ * Moves on a 4x4 board packed into a long, 4 bits per cell, cell i in bits 4*i to 4*i+3.
+ * The network protocol sends boards in the same format.
+ * Every possible 16-bit row is merged once up front into LEFT_ROWS and RIGHT_ROWS, so a move
+ * is four table lookups, and up and down are the same lookups on the transposed board.
+ * The tables are built with the original chain merge, so a tile keeps merging as long as it
+ * meets an equal tile, and the counts match what GameRoom used to add up cell by cell.
+ */
+public final class Bitboard {
+    public static final int LEFT = 0;
+    public static final int RIGHT = 1;
+    public static final int UP = 2;
+    public static final int DOWN = 3;
+
+    public static final int SIZE = 4;
+    public static final int CELL_BITS = 4;
+    public static final int CELL_MASK = (1 << CELL_BITS) - 1;
+    // a packed long holds at most this many cells
+    public static final int CELLS = Long.SIZE / CELL_BITS;
+    private static final int ROW_BITS = SIZE * CELL_BITS;
+    private static final int ROW_MASK = (1 << ROW_BITS) - 1;
+
+    // table entry: bits 0-15 the moved row, 16-19 merges, 20-23 tiles moved, 24-27 highest tile that stopped against another
+    private static final int MERGES_SHIFT = 16;
+    private static final int MOVED_SHIFT = 20;
+    private static final int LEVEL_SHIFT = 24;
+    private static final int[] LEFT_ROWS = new int[1 << ROW_BITS];
+    private static final int[] RIGHT_ROWS = new int[1 << ROW_BITS];
+
+    static {
+        int[] line = new int[SIZE];
+        for (int row = 0; row <= ROW_MASK; row++) {
+            LEFT_ROWS[row] = mergeRow(row, line, -1, 0, SIZE - 1);
+            RIGHT_ROWS[row] = mergeRow(row, line, 1, SIZE - 1, 0);
+        }
+    }
+
+    // what one move did, filled in by move() so callers can reuse a single instance
+    public static class Result {
+        public long board;
+        public int merges;
+        public int tilesMoved;
+        // highest tile that ended up against another tile, 0 if none did
+        public int topTile;
+    }
+
+    private Bitboard() {
+    }
+
+    // cell i goes into bits 4*i .. 4*i+3
+    public static long pack(int[] board) {
+        if (board.length > CELLS) {
+            throw new IllegalArgumentException("Board too large to pack: " + board.length);
+        }
+        return pack(board, 0, board.length);
+    }
+
+    // cells from up to to of a larger board, cell from in the lowest bits
+    public static long pack(int[] board, int from, int to) {
+        long packed = 0;
+        for (int i = from; i < to; i++) {
+            if (board[i] < 0 || board[i] > CELL_MASK) {
+                throw new IllegalArgumentException("Cell value out of range: " + board[i]);
+            }
+            packed |= (long) board[i] << ((i - from) * CELL_BITS);
+        }
+        return packed;
+    }
+
+    public static void unpack(long packed, int[] board) {
+        unpack(packed, board, 0, board.length);
+    }
+
+    public static void unpack(long packed, int[] board, int from, int to) {
+        for (int i = from; i < to; i++) {
+            board[i] = (int) (packed >>> ((i - from) * CELL_BITS)) & CELL_MASK;
+        }
+    }
+
+    // apply a move in direction LEFT, RIGHT, UP or DOWN to board
+    public static void move(long board, int direction, Result result) {
+        boolean transposed = direction == UP || direction == DOWN;
+        int[] rows = direction == LEFT || direction == UP ? LEFT_ROWS : RIGHT_ROWS;
+        long in = transposed ? transpose(board) : board;
+        long out = 0;
+        int merges = 0;
+        int tilesMoved = 0;
+        int level = 0;
+        for (int r = 0; r < SIZE; r++) {
+            int shift = r * ROW_BITS;
+            int entry = rows[(int) (in >>> shift) & ROW_MASK];
+            out |= (long) (entry & ROW_MASK) << shift;
+            merges += (entry >>> MERGES_SHIFT) & 0xF;
+            tilesMoved += (entry >>> MOVED_SHIFT) & 0xF;
+            level = Math.max(level, (entry >>> LEVEL_SHIFT) & 0xF);
+        }
+        result.board = transposed ? transpose(out) : out;
+        result.merges = merges;
+        result.tilesMoved = tilesMoved;
+        result.topTile = level;
+    }
+
+    // bit i is set when cell i is empty
+    public static int emptyMask(long board) {
+        // fold every nibble into its lowest bit: set when the cell holds a tile
+        long full = board | (board >>> 1);
+        full |= full >>> 2;
+        long empty = ~full & 0x1111111111111111L;
+        // then gather the bits 4 apart into 16 neighbouring bits
+        empty = (empty | (empty >>> 3)) & 0x0303030303030303L;
+        empty = (empty | (empty >>> 6)) & 0x000F000F000F000FL;
+        empty = (empty | (empty >>> 12)) & 0x000000FF000000FFL;
+        empty = (empty | (empty >>> 24)) & 0xFFFFL;
+        return (int) empty;
+    }
+
+    // index of the k-th set bit of mask, counting from 0 at the lowest
+    public static int nthSetBit(int mask, int k) {
+        for (int n = 0; n < k; n++) {
+            mask &= mask - 1;
+        }
+        return Integer.numberOfTrailingZeros(mask);
+    }
+
+    // swap rows and columns, cell 4*r+c trades places with cell 4*c+r
+    public static long transpose(long x) {
+        long a1 = x & 0xF0F00F0FF0F00F0FL;
+        long a2 = x & 0x0000F0F00000F0F0L;
+        long a3 = x & 0x0F0F00000F0F0000L;
+        long a = a1 | (a2 << 12) | (a3 >>> 12);
+        long b1 = a & 0xFF00FF0000FF00FFL;
+        long b2 = a & 0x00FF00FF00000000L;
+        long b3 = a & 0x00000000FF00FF00L;
+        return b1 | (b2 >>> 24) | (b3 << 24);
+    }
+
+    // the merge GameRoom used to run on the board array, on a single row:
+    // tiles move by d towards cell s, starting next to s and going on to l
+    private static int mergeRow(int row, int[] line, int d, int s, int l) {
+        for (int i = 0; i < SIZE; i++) {
+            line[i] = (row >>> (i * CELL_BITS)) & CELL_MASK;
+        }
+        int merges = 0;
+        int tilesMoved = 0;
+        int level = 0;
+        int v, j;
+        for (int i = s - d; i != l - d; i -= d) {
+            j = i;
+            if (line[j] <= 0) continue;
+            v = line[j];
+            line[j] = 0;
+            while (j + d != s && line[j + d] == 0)
+                j += d;
+
+            if (line[j + d] == 0) {
+                j += d;
+                line[j] = v;
+            } else {
+                while (j != s && line[j + d] == v) {
+                    j += d;
+                    line[j] = 0;
+                    v++;
+                    merges++;
+                }
+                // two 15s can not merge into 4 bits; games end at GameRules.LIMIT long before that
+                v = Math.min(v, CELL_MASK);
+                line[j] = v;
+                level = Math.max(level, v);
+            }
+            if (i != j)
+                tilesMoved++;
+        }
+        int moved = 0;
+        for (int i = 0; i < SIZE; i++) {
+            moved |= line[i] << (i * CELL_BITS);
+        }
+        return moved | merges << MERGES_SHIFT | tilesMoved << MOVED_SHIFT | level << LEVEL_SHIFT;
+    }
+}
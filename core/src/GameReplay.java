@@ -0,0 +1,84 @@
+import java.util.SplittableRandom;
+
+/**
+ * Rebuilds a room's game from its seed, its board size and the moves and puzzle uploads the
+ * room accepted, in order. A room draws every new tile from a SplittableRandom seeded with the
+ * seed it sends in 'G', so the same inputs give the same boards, scores and levels, tile for tile.
+ * A stored game is the seed plus its inputs, and a board a client reports can be checked by
+ * replaying up to it.
+ */
+public final class GameReplay {
+    private final SplittableRandom random;
+    private final int size;
+    private int[] board;
+    private int score;
+    private int level = 1;
+    private int combo;
+    private int moves;
+    private boolean gameOver;
+    private final GameRules.Result result = new GameRules.Result();
+
+    public GameReplay(long seed, int size) {
+        this.random = new SplittableRandom(seed);
+        this.size = size;
+        // the room spawns the first tile on a 4x4 board when it is created,
+        // and on a new board if the game then starts on another size
+        board = new int[GameRules.SIZE * GameRules.SIZE];
+        GameRules.spawn(board, level, random);
+        if (size != GameRules.SIZE) {
+            board = new int[size * size];
+            GameRules.spawn(board, level, random);
+        }
+    }
+
+    // a move in a Bitboard direction by the player whose turn it was; the room ignores moves after game over
+    public void move(int direction) {
+        if (gameOver) return;
+        GameRules.move(board, size, direction, level, random, result);
+        score += result.scoreDelta;
+        combo = result.combo;
+        level = result.level;
+        if (result.tilesMoved > 0) {
+            moves++;
+        }
+        gameOver = result.gameOver;
+    }
+
+    // an accepted puzzle upload replaces the board and starts the scores over
+    public void upload(int[] puzzle) {
+        System.arraycopy(puzzle, 0, board, 0, board.length);
+        score = 0;
+        level = 1;
+        combo = 0;
+        moves = 0;
+        gameOver = false;
+    }
+
+    public int[] getBoard() {
+        return board.clone();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getCombo() {
+        return combo;
+    }
+
+    public int getMoveCount() {
+        return moves;
+    }
+
+    public boolean isGameOver() {
+        return gameOver;
+    }
+}
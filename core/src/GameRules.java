@@ -0,0 +1,185 @@
+import java.util.SplittableRandom;
+
+/**
+ * The rules of the game in one place, for the server's GameRoom and the standalone BattleJoker engine.
+ * A move takes a board and a direction and fills in a reused Result: the score it earned, the
+ * combo, how many tiles moved, the new level and whether the game is over. The next tile is
+ * already spawned on the board. No allocation, no I/O and no UI, so the same code can run on
+ * the server, in simulators and in a client.
+ *
+ * The 4x4 board is moved packed into a long through Bitboard's tables. Larger boards, up to
+ * MAX_SIZE, are merged in place with one pass over each line, so a move stays linear in the
+ * number of cells.
+ */
+public final class GameRules {
+    // the game ends when a tile reaches this level
+    public static final int LIMIT = 14;
+    public static final int SIZE = Bitboard.SIZE;
+    // rooms can play on boards from SIZE x SIZE up to MAX_SIZE x MAX_SIZE
+    public static final int MAX_SIZE = 8;
+
+    public static final class Result extends Bitboard.Result {
+        // every merge is a point, and every five merges of one move two more
+        public int scoreDelta;
+        // merges of this move
+        public int combo;
+        public int level;
+        public boolean gameOver;
+    }
+
+    private GameRules() {
+    }
+
+    // move the tiles of a packed 4x4 board at the given level; if anything moved, a new tile is spawned
+    public static void move(long board, int direction, int level, SplittableRandom random, Result result) {
+        Bitboard.move(board, direction, result);
+        score(level, result);
+        int emptyCells = Bitboard.emptyMask(result.board);
+        if (result.tilesMoved > 0) {
+            result.gameOver = result.level == LIMIT || emptyCells == 0;
+            if (!result.gameOver) {
+                result.board = spawn(result.board, emptyCells, result.level, random);
+            }
+        } else {
+            result.gameOver = emptyCells == 0;
+        }
+    }
+
+    // the same on a size x size board of one int per cell, changed in place; result.board is not used
+    public static void move(int[] board, int size, int direction, int level, SplittableRandom random, Result result) {
+        if (size == Bitboard.SIZE) {
+            move(Bitboard.pack(board), direction, level, random, result);
+            Bitboard.unpack(result.board, board);
+            return;
+        }
+        mergeLines(board, size, direction, result);
+        score(level, result);
+        if (result.tilesMoved > 0) {
+            result.gameOver = result.level == LIMIT || !spawn(board, result.level, random);
+        } else {
+            result.gameOver = isFull(board);
+        }
+    }
+
+    // only slide and merge the tiles of a size x size board in place: no score, no level and no new tile
+    public static void slide(int[] board, int size, int direction, Bitboard.Result result) {
+        if (size == Bitboard.SIZE) {
+            Bitboard.move(Bitboard.pack(board), direction, result);
+            Bitboard.unpack(result.board, board);
+        } else {
+            mergeLines(board, size, direction, result);
+        }
+    }
+
+    // packed 4x4 board with a new tile on a random empty cell, or board itself if it is full
+    public static long spawn(long board, int level, SplittableRandom random) {
+        int emptyCells = Bitboard.emptyMask(board);
+        if (emptyCells == 0) return board;
+        return spawn(board, emptyCells, level, random);
+    }
+
+    // put a new tile on a random empty cell, false if there is none
+    public static boolean spawn(int[] board, int level, SplittableRandom random) {
+        int empty = 0;
+        for (int v : board) {
+            if (v == 0) empty++;
+        }
+        if (empty == 0) return false;
+        int k = random.nextInt(empty);
+        for (int i = 0; i < board.length; i++) {
+            if (board[i] == 0 && k-- == 0) {
+                board[i] = newTile(level, random);
+                break;
+            }
+        }
+        return true;
+    }
+
+    public static boolean isFull(int[] board) {
+        for (int v : board) {
+            if (v == 0) return false;
+        }
+        return true;
+    }
+
+    // points for a move with this many merges
+    public static int scoreDelta(int merges) {
+        return merges + merges / 5 * 2;
+    }
+
+    // chance that a tile spawned at this level has the given value, 0 for a value it never has
+    public static double tileProbability(int tile, int level) {
+        // newTile draws nextInt(level) / 4 + 1, so a value covers up to four of the draws
+        int draws = Math.min(4, level - (tile - 1) * 4);
+        return tile < 1 || draws <= 0 ? 0 : (double) draws / level;
+    }
+
+    private static void score(int level, Result result) {
+        result.combo = result.merges;
+        result.scoreDelta = scoreDelta(result.merges);
+        result.level = Math.max(level, result.topTile);
+    }
+
+    // uniform over the empty cells, no retries however full the board is
+    private static long spawn(long board, int emptyCells, int level, SplittableRandom random) {
+        int cell = Bitboard.nthSetBit(emptyCells, random.nextInt(Integer.bitCount(emptyCells)));
+        return board | (long) newTile(level, random) << (cell * Bitboard.CELL_BITS);
+    }
+
+    // new tiles grow with the level: 1 up to level 4, then up to 2, and so on
+    private static int newTile(int level, SplittableRandom random) {
+        return random.nextInt(level) / 4 + 1;
+    }
+
+    // The chain merge of Bitboard's tables on every line of a larger board. The tiles that have
+    // settled at the front of a line form a stack: a tile arriving on an equal tile merges into
+    // it and keeps merging while the tile below is equal, so every tile is touched once.
+    private static void mergeLines(int[] board, int size, int direction, Bitboard.Result result) {
+        // first cell of line 0, step along a line towards its far end, step to the next line
+        int start, along, across;
+        switch (direction) {
+            case Bitboard.LEFT:
+                start = 0; along = 1; across = size;
+                break;
+            case Bitboard.RIGHT:
+                start = size - 1; along = -1; across = size;
+                break;
+            case Bitboard.UP:
+                start = 0; along = size; across = 1;
+                break;
+            default:
+                start = size * (size - 1); along = -size; across = 1;
+                break;
+        }
+        int merges = 0;
+        int tilesMoved = 0;
+        int topTile = 0;
+        for (int line = 0; line < size; line++) {
+            int first = start + line * across;
+            // position of the last settled tile, -1 while the line is empty
+            int top = -1;
+            for (int k = 0; k < size; k++) {
+                int v = board[first + k * along];
+                if (v == 0) continue;
+                board[first + k * along] = 0;
+                boolean blocked = top >= 0;
+                while (top >= 0 && board[first + top * along] == v) {
+                    board[first + top * along] = 0;
+                    top--;
+                    v++;
+                    merges++;
+                }
+                if (blocked) {
+                    v = Math.min(v, Bitboard.CELL_MASK);
+                    topTile = Math.max(topTile, v);
+                }
+                top++;
+                board[first + top * along] = v;
+                if (top != k) tilesMoved++;
+            }
+        }
+        result.merges = merges;
+        result.tilesMoved = tilesMoved;
+        result.topTile = topTile;
+    }
+}
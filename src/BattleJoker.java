@@ -22,7 +22,11 @@ public class BattleJoker extends Application {
             GameEngine.getInstance().setGameWindow(gameWindow);
 
             // Connect to server
-            GameEngine.getInstance().connectToServer(serverIP, serverPort, playerName);
+            if (dialog.isWatching()) {
+                GameEngine.getInstance().watchServer(serverIP, serverPort, playerName);
+            } else {
+                GameEngine.getInstance().connectToServer(serverIP, serverPort, playerName);
+            }
 
         } catch (Exception ex) {
             throw new RuntimeException(ex);
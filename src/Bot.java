@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A player the server seats itself, for rooms that would otherwise wait for a second player
+ * and for load tests without real clients. A bot has no connection and no thread: the room
+ * asks it for a move on the shared timer when its turn comes, see GameRoom.
+ * It plays greedily, one move ahead: the move scoring the most points, then the one leaving
+ * the most empty cells, preferring down and left so the big tiles gather in a corner.
+ */
+public final class Bot {
+    // set with -Djoker.bot.moveDelayMillis
+    public static final int MOVE_DELAY_MILLIS = Integer.getInteger("joker.bot.moveDelayMillis", 400);
+    // Bitboard directions in order of preference
+    private static final int[] PREFERENCE = {Bitboard.DOWN, Bitboard.LEFT, Bitboard.RIGHT, Bitboard.UP};
+    // the move command for each Bitboard direction
+    private static final char[] COMMANDS = {'L', 'R', 'U', 'D'};
+    private static final AtomicInteger count = new AtomicInteger();
+
+    // scratch state, a bot only ever moves inside its room's mailbox
+    private final Bitboard.Result result = new Bitboard.Result();
+    private int[] scratch = new int[0];
+
+    // a new bot with a name of its own
+    public static PlayerInfo newPlayer() {
+        int n = count.incrementAndGet();
+        return new PlayerInfo("Bot " + n, "bot-" + n);
+    }
+
+    // the move command to play on a size x size board, 0 when no move changes it
+    public char chooseMove(int[] board, int size) {
+        int direction = size == Bitboard.SIZE ? chooseDirection(Bitboard.pack(board)) : chooseDirection(board, size);
+        return direction < 0 ? 0 : COMMANDS[direction];
+    }
+
+    // the Bitboard direction to play on a packed 4x4 board, -1 when no move changes it
+    public int chooseDirection(long board) {
+        int best = -1;
+        int bestValue = -1;
+        for (int direction : PREFERENCE) {
+            Bitboard.move(board, direction, result);
+            if (result.tilesMoved == 0) continue;
+            int value = value(result.merges, Integer.bitCount(Bitboard.emptyMask(result.board)), Bitboard.CELLS);
+            if (value > bestValue) {
+                best = direction;
+                bestValue = value;
+            }
+        }
+        return best;
+    }
+
+    private int chooseDirection(int[] board, int size) {
+        if (scratch.length != board.length) {
+            scratch = new int[board.length];
+        }
+        int best = -1;
+        int bestValue = -1;
+        for (int direction : PREFERENCE) {
+            System.arraycopy(board, 0, scratch, 0, board.length);
+            GameRules.slide(scratch, size, direction, result);
+            if (result.tilesMoved == 0) continue;
+            int empty = 0;
+            for (int v : scratch) {
+                if (v == 0) empty++;
+            }
+            int value = value(result.merges, empty, board.length);
+            if (value > bestValue) {
+                best = direction;
+                bestValue = value;
+            }
+        }
+        return best;
+    }
+
+    // a point is worth more than any number of empty cells
+    private static int value(int merges, int empty, int cells) {
+        return GameRules.scoreDelta(merges) * cells + empty;
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Checks that rooms of bots play their games to the end: every game has to reach FINISHED and be
+ * closed, a room that hangs on a board no move changes would never be. Runs the rooms in process
+ * with fast bots, without journal or checkpoints, and exits with 1 if too few games end in time.
+ * usage: BotRoomCheck [rooms] [games] [seconds]
+ */
+public class BotRoomCheck {
+
+    public static void main(String[] args) throws InterruptedException {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        // before GameRoom, Bot and the stores read them
+        System.setProperty("joker.bot.moveDelayMillis", "0");
+        System.setProperty("joker.finishedRoomLingerMillis", "0");
+        System.setProperty("joker.journal.dir", "");
+        System.setProperty("joker.snapshot.dir", "");
+
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        Matchmaker matchmaker = new Matchmaker(workers, timer, GameJournal.open(), RoomStore.open(), new ShardLink());
+        matchmaker.startBotRooms(rooms);
+        long giveUp = System.currentTimeMillis() + seconds * 1000L;
+        while (matchmaker.closedRoomCount() < games && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(100);
+        }
+        long finished = matchmaker.closedRoomCount();
+        System.out.println(finished + " of " + games + " bot games finished and closed, " + matchmaker.liveRoomCount() + " rooms live");
+        System.exit(finished >= games ? 0 : 1);
+    }
+}
@@ -3,7 +3,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 public class Database {
-    final static String url = "jdbc:sqlite:data/battleJoker.db";
+    // set with -Djoker.db, the shards of a ShardRouter have to share one
+    final static String url = "jdbc:sqlite:" + System.getProperty("joker.db", "data/battleJoker.db");
 
     public static ArrayList<HashMap<String, String>> getScores() throws SQLException, ClassNotFoundException {
         String sql = "SELECT * FROM scores ORDER BY score DESC LIMIT 10";
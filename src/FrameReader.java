@@ -0,0 +1,70 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads Protocol.FRAMED frames. A frame is always read whole before it is parsed, so a
+ * malformed payload can not desync the stream and frames of unknown types are skipped.
+ * The payload buffer and the stream over it are reused; one reader per connection.
+ */
+public class FrameReader {
+    private byte[] buffer = new byte[64];
+    private final PayloadStream payload = new PayloadStream();
+    private final DataInputStream payloadIn = new DataInputStream(payload);
+
+    // read the next frame from a blocking stream, returns its type; the payload is in payload()
+    public int read(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        checkFormat(in.readUnsignedByte());
+        int length = in.readUnsignedShort();
+        if (length > buffer.length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        in.readFully(buffer, 0, length);
+        payload.reset(buffer, 0, length);
+        return type;
+    }
+
+    // the payload of the last frame read
+    public DataInputStream payload() {
+        return payloadIn;
+    }
+
+    // parse a payload in place, without copying it out of a read buffer
+    public DataInputStream payload(byte[] bytes, int offset, int length) {
+        payload.reset(bytes, offset, length);
+        return payloadIn;
+    }
+
+    // length of the complete frame at the buffer's position, or -1 if more bytes are needed
+    public static int frameLength(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < Protocol.HEADER_LENGTH) {
+            return -1;
+        }
+        int start = buf.position();
+        checkFormat(buf.get(start + 1) & 0xFF);
+        int length = Protocol.HEADER_LENGTH + (buf.getShort(start + 2) & 0xFFFF);
+        return buf.remaining() < length ? -1 : length;
+    }
+
+    private static void checkFormat(int format) throws IOException {
+        if (format != Protocol.FRAME_FORMAT) {
+            throw new IOException("Unknown frame format: " + format);
+        }
+    }
+
+    // a ByteArrayInputStream that can be pointed at another array region
+    private static final class PayloadStream extends ByteArrayInputStream {
+        PayloadStream() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] bytes, int offset, int length) {
+            buf = bytes;
+            pos = offset;
+            mark = offset;
+            count = offset + length;
+        }
+    }
+}
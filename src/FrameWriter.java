@@ -0,0 +1,77 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes frames to one stream, with the Protocol.FRAMED header in front of every payload,
+ * or as the bare type byte and payload for clients that negotiated an older version.
+ * A frame is written between begin and end; not thread safe, each stream has one writer thread.
+ */
+public class FrameWriter {
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final DataOutputStream out;
+    private volatile boolean framed;
+    // the payload of the frame being written, reused for every frame
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private int type = -1;
+
+    public FrameWriter(DataOutputStream out, boolean framed) {
+        this.out = out;
+        this.framed = framed;
+    }
+
+    // the client only knows whether to frame once the server has answered with 'V'
+    public void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    // start a frame, its payload is written to the returned stream
+    public DataOutputStream begin(int type) throws IOException {
+        if (!framed) {
+            out.writeByte(type);
+            return out;
+        }
+        this.type = type;
+        payload.reset();
+        return payloadOut;
+    }
+
+    public void end() throws IOException {
+        if (!framed) {
+            return;
+        }
+        writeHeader(type, payload.size());
+        payload.writeTo(out);
+        type = -1;
+    }
+
+    // a frame whose payload is already encoded
+    public void write(int type, byte[] encodedPayload) throws IOException {
+        if (framed) {
+            writeHeader(type, encodedPayload.length);
+        } else {
+            out.writeByte(type);
+        }
+        out.write(encodedPayload);
+    }
+
+    // a frame with no payload, like a move or a request
+    public void write(int type) throws IOException {
+        write(type, NO_PAYLOAD);
+    }
+
+    private void writeHeader(int type, int length) throws IOException {
+        if (length > Protocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Frame '" + (char) type + "' too long: " + length);
+        }
+        out.writeByte(type);
+        out.writeByte(Protocol.FRAME_FORMAT);
+        out.writeShort(length);
+    }
+}
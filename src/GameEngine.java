@@ -8,22 +8,49 @@ import java.util.*;
 public class GameEngine {
 
     private GameWindow gameWindow;
+    // the classic board, and the size of puzzle files
     public static final int SIZE = 4;
-    final int[] board = new int[SIZE * SIZE];
+    // the board is replaced when the game starts on another size, so it has a lock of its own
+    private final Object boardLock = new Object();
+    private int size = SIZE;
+    int[] board = new int[SIZE * SIZE];
+    // sequence number of the server broadcast the board matches
+    private int boardSeq = -1;
+    private volatile boolean resyncRequested = false;
+    // protocol version the server agreed to in 'V'
+    private int protocolVersion = Protocol.LEGACY;
+    // seed of the room's tiles from 'G', with the moves it replays the game
+    private long gameSeed;
     private boolean gameOver = false;
     private static GameEngine instance;
     private String playerId;
+    // own seat and the seat whose turn it is; other players are only known by seat
+    private int seat = -1;
+    private int currentSeat = -1;
+    private final String[] seatNames = new String[4];
     Socket clientSocket;
-    DataOutputStream out;
+    // replaced when the client reconnects, while the FX thread may be sending
+    volatile DataOutputStream out;
     DataInputStream in;
+    // commands go out framed once the server has agreed to Protocol.FRAMED
+    volatile FrameWriter frames;
+    private final FrameReader frameReader = new FrameReader();
     List<PlayerInfo> players = new ArrayList<>();
     Thread receiverThread;
 
     private String playerName;
+    // the server, to reconnect to during a game
+    private String serverIP;
+    private int serverPort;
+    // a restarted server keeps the seats of a recovered game this long, the client tries every RECONNECT_DELAY_MILLIS
+    private static final int RECONNECT_MILLIS = 60_000;
+    private static final int RECONNECT_DELAY_MILLIS = 1_000;
+    private volatile boolean stopped;
+    // a spectator has no seat and no lobby, it is shown the game of any room in play
+    private boolean watching;
     public LobbyController lobbyController;
 
     private List<PlayerInfo> playerList = new ArrayList<>();
-    private String currentPlayerId;
 
     public void setLobbyController(LobbyController lobbyController) {
         this.lobbyController = lobbyController;
@@ -37,14 +64,10 @@ public class GameEngine {
 
     public void connectToServer(String serverIP, int serverPort, String playerName) {
         this.playerName = playerName;
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
         try {
-            clientSocket = new Socket(serverIP, serverPort);
-            out = new DataOutputStream(clientSocket.getOutputStream());
-            in = new DataInputStream(clientSocket.getInputStream());
-
-            out.writeUTF(playerName);
-            out.flush();
-            System.out.println("Client: Sent player name to server: " + playerName);
+            open();
             if (gameWindow != null) {
                 gameWindow.showLobby();
             }
@@ -54,11 +77,75 @@ public class GameEngine {
         }
     }
 
+    // watch a game in play without taking a seat
+    public void watchServer(String serverIP, int serverPort, String playerName) {
+        this.playerName = playerName;
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
+        watching = true;
+        try {
+            open();
+            startReceiverThread();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    // connect and say HELLO, with the player id of the connection before if there was one
+    private void open() throws IOException {
+        clientSocket = new Socket(serverIP, serverPort);
+        out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        // 'I' and 'V' come unframed again
+        protocolVersion = Protocol.LEGACY;
+        frames = new FrameWriter(out, false);
+
+        out.writeShort(Protocol.HELLO);
+        out.writeByte(Protocol.VERSION);
+        out.writeUTF(playerName);
+        out.writeUTF(playerId != null ? playerId : "");
+        out.writeByte(watching ? Protocol.WATCH : Protocol.PLAY);
+        out.writeLong(0); // any room in play
+        out.flush();
+        System.out.println("Client: Sent player name to server: " + playerName);
+    }
+
+    // the connection was lost during a game; a server restarted from its checkpoints gives the seat back
+    private boolean reconnect() {
+        if (stopped || playerId == null || seat < 0 || gameOver) {
+            return false;
+        }
+        Platform.runLater(() -> gameWindow.showMessage("Lost the server, reconnecting..."));
+        long giveUp = System.currentTimeMillis() + RECONNECT_MILLIS;
+        while (!stopped && System.currentTimeMillis() < giveUp) {
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+                open();
+                return true;
+            } catch (IOException e) {
+                System.out.println("Client: Reconnecting failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
     public void startReceiverThread() {
         receiverThread = new Thread(() -> {
             try {
                 while (true) {
-                    byte data = in.readByte();
+                    // 'I' and 'V' of the handshake are never framed, everything after 'V' is
+                    byte data;
+                    DataInputStream in;
+                    if (protocolVersion >= Protocol.FRAMED) {
+                        data = (byte) frameReader.read(this.in);
+                        in = frameReader.payload();
+                    } else {
+                        in = this.in;
+                        data = in.readByte();
+                    }
                     System.out.println("Client: Received data: " + (char)data);
                     switch (data) {
                         case 'L':
@@ -74,6 +161,7 @@ public class GameEngine {
                         case 'F':
                             // Server notifies whether the player is the first player
                             isFirstPlayer = in.readBoolean();
+                            seat = in.readUnsignedByte();
                             if (lobbyController != null) {
                                 lobbyController.setFirstPlayer(isFirstPlayer);
                             }
@@ -82,6 +170,10 @@ public class GameEngine {
                             // Download array
                             receiveArray(in);
                             break;
+                        case 'D':
+                            // Cells changed since the last board
+                            receiveBoardDelta(in);
+                            break;
                         case 'P':
                             // Receive other player data
                             List<PlayerInfo> players = receivePlayersInfo(in);
@@ -100,12 +192,19 @@ public class GameEngine {
                             Platform.runLater(() -> gameWindow.displayTopScores(topScores));
                             break;
                         case 'N':
-                            String currentPlayerId = in.readUTF();
-                            System.out.println("Client: Current player ID is " + currentPlayerId);
-                            updateCurrentPlayer(currentPlayerId);
+                            int currentSeat = in.readUnsignedByte();
+                            System.out.println("Client: Current player seat is " + currentSeat);
+                            updateCurrentPlayer(currentSeat);
                             break;
                         case 'G':
-                            // Game start notification
+                            // Game start notification, with the board size from BOARD_SIZES on and the seed from SEEDS on
+                            if (protocolVersion >= Protocol.BOARD_SIZES) {
+                                setBoardSize(in.readUnsignedByte());
+                            }
+                            if (protocolVersion >= Protocol.SEEDS) {
+                                gameSeed = in.readLong();
+                                System.out.println("Client: Game seed is " + gameSeed);
+                            }
                             if (lobbyController != null) {
                                 lobbyController.hideLobby();
                             }
@@ -114,33 +213,77 @@ public class GameEngine {
                         case 'I':
                             // Receive player ID from server
                             String playerId = in.readUTF();
+                            if (this.playerId != null && !this.playerId.equals(playerId)) {
+                                // reconnected, but the server no longer keeps the seat
+                                Platform.runLater(() -> gameWindow.showMessage("The game is lost, the server no longer has it."));
+                                stop();
+                                break;
+                            }
                             this.playerId = playerId;
                             System.out.println("Client: Received player ID: " + playerId);
                             break;
+                        case 'V':
+                            // Protocol version for the rest of the session
+                            protocolVersion = in.readUnsignedByte();
+                            frames.setFramed(protocolVersion >= Protocol.FRAMED);
+                            System.out.println("Client: Using protocol version " + protocolVersion);
+                            break;
+                        case 'R':
+                            // a ShardRouter sends the client on to one of its servers, which gets the same HELLO;
+                            // reconnecting goes straight there too, a restarted server keeps the seat
+                            serverIP = in.readUTF();
+                            serverPort = in.readUnsignedShort();
+                            clientSocket.close();
+                            open();
+                            System.out.println("Client: Sent on to " + serverIP + ":" + serverPort);
+                            break;
                         case 'M':
                             // notify
                             String message = in.readUTF();
                             Platform.runLater(() -> gameWindow.showMessage(message));
                             break;
+                        case 'K':
+                            // heartbeat ping, answer from the FX thread like every other command
+                            Platform.runLater(this::sendPong);
+                            break;
+                        case 'W':
+                            // watching a room instead of playing in it
+                            long room = in.readLong();
+                            Platform.runLater(() -> gameWindow.showMessage("Watching room " + Long.toHexString(room)));
+                            break;
+                        case 'H':
+                            // answer to requestHint
+                            String hint = receiveHint(in);
+                            Platform.runLater(() -> gameWindow.showHint(hint));
+                            break;
                         default:
                             // Print the direction
                             System.out.println("Unknown data: " + (char)data);
                     }
                 }
             } catch (IOException ex) {
-                ex.printStackTrace();
+                if (reconnect()) {
+                    // the same seat on a new connection, the server sends the whole game again
+                    startReceiverThread();
+                } else {
+                    ex.printStackTrace();
+                }
             }
         });
         receiverThread.start();
     }
 
     private List<PlayerInfo> receivePlayerList(DataInputStream in) throws IOException {
-        int numPlayers = in.readInt();
+        int numPlayers = in.readUnsignedByte();
         List<PlayerInfo> players = new ArrayList<>();
         for (int i = 0; i < numPlayers; i++) {
+            int seat = in.readUnsignedByte();
             String name = in.readUTF();
-            String playerId = in.readUTF();
-            PlayerInfo player = new PlayerInfo(name, playerId);
+            PlayerInfo player = new PlayerInfo(name, seat == this.seat ? playerId : null);
+            player.setSeat(seat);
+            if (seat < seatNames.length) {
+                seatNames[seat] = name;
+            }
             players.add(player);
         }
         // Update the players list in GameEngine
@@ -149,8 +292,13 @@ public class GameEngine {
     }
 
 
-    public void sendStartGameCommand() throws IOException {
-        out.writeByte('S'); // 'S' mean game start
+    public void sendStartGameCommand(int boardSize) throws IOException {
+        if (protocolVersion >= Protocol.BOARD_SIZES) {
+            frames.begin('S').writeByte(boardSize); // 'S' mean game start, on a boardSize x boardSize board
+            frames.end();
+        } else {
+            frames.write('S'); // 'S' mean game start
+        }
         out.flush();
         System.out.println("Client: Sent start game command.");
     }
@@ -158,17 +306,12 @@ public class GameEngine {
 
 
     void receiveArray(DataInputStream in) throws IOException {
-        synchronized (board) {
-            int size = in.readInt();
-            System.out.println("Client: Received array size: " + size);
-            if (size != board.length) {
-                System.err.println("Error: Expected board size " + board.length + ", but received " + size);
-                size = Math.min(size, board.length);
-            }
-            for (int i = 0; i < size; i++) {
-                board[i] = in.readInt();
-
-                if (board[i] < 0 || board[i] >= GameWindow.images.length) {
+        synchronized (boardLock) {
+            boardSeq = in.readInt();
+            resyncRequested = false;
+            Protocol.readBoard(in, board);
+            for (int i = 0; i < board.length; i++) {
+                if (board[i] >= GameWindow.images.length) {
                     System.err.println("Invalid board value at index " + i + ": " + board[i]);
                     board[i] = 0;
                 }
@@ -179,17 +322,111 @@ public class GameEngine {
     }
 
 
+    // apply a board delta, or ask the server for the full board if one was missed
+    void receiveBoardDelta(DataInputStream in) throws IOException {
+        boolean inSync;
+        synchronized (boardLock) {
+            int seq = in.readInt();
+            int count = in.readUnsignedByte();
+            inSync = seq == boardSeq + 1;
+            for (int i = 0; i < count; i++) {
+                int cell, value;
+                if (size == SIZE) {
+                    // cell index in the high nibble, value in the low nibble
+                    int packed = in.readUnsignedByte();
+                    cell = packed >> Protocol.CELL_BITS;
+                    value = packed & Protocol.CELL_MASK;
+                } else {
+                    cell = in.readUnsignedByte();
+                    value = in.readUnsignedByte();
+                }
+                if (inSync && cell < board.length && value < GameWindow.images.length) {
+                    board[cell] = value;
+                }
+            }
+            if (inSync) {
+                boardSeq = seq;
+            }
+        }
+        if (!inSync && !resyncRequested) {
+            resyncRequested = true;
+            System.out.println("Client: Missed a board update, requesting the full board.");
+            // sent from the FX thread like every other command
+            Platform.runLater(() -> {
+                try {
+                    frames.write('A');
+                    out.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    private void sendPong() {
+        try {
+            frames.write('K');
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // ask the server for the best move on the board as this client sees it
+    public void requestHint() throws IOException {
+        if (protocolVersion < Protocol.HINTS) {
+            gameWindow.showMessage("This server does not give hints.");
+            return;
+        }
+        long packed;
+        synchronized (boardLock) {
+            if (size != SIZE) {
+                gameWindow.showMessage("Hints are only given on 4x4 boards.");
+                return;
+            }
+            packed = Protocol.packBoard(board);
+        }
+        // the room's level decides which tiles can spawn, every player in 'P' has reached it
+        int level = 1;
+        for (PlayerInfo player : players) {
+            level = Math.max(level, player.getLevel());
+        }
+        DataOutputStream payload = frames.begin('H'); // 'H' asks for a hint
+        payload.writeByte(level);
+        payload.writeLong(packed);
+        frames.end();
+        out.flush();
+    }
+
+    // in Bitboard direction order
+    private static final String[] DIRECTION_NAMES = {"Left", "Right", "Up", "Down"};
+
+    // the hint as one line for the window, see JokerServer.sendHint for the payload
+    private String receiveHint(DataInputStream in) throws IOException {
+        int direction = in.readUnsignedByte();
+        int depth = in.readUnsignedByte();
+        StringBuilder sb = new StringBuilder();
+        sb.append(direction < DIRECTION_NAMES.length ? "Hint: " + DIRECTION_NAMES[direction] : "Hint: no move left");
+        sb.append(" (").append(depth).append(" moves ahead;");
+        for (String name : DIRECTION_NAMES) {
+            float value = in.readFloat();
+            sb.append(' ').append(name).append(' ').append(Float.isNaN(value) ? "-" : String.format("%.1f", value));
+        }
+        return sb.append(')').toString();
+    }
+
     private List<PlayerInfo> receivePlayersInfo(DataInputStream in) throws IOException {
-        int numPlayers = in.readInt();
+        int numPlayers = in.readUnsignedByte();
         List<PlayerInfo> receivedPlayers = new ArrayList<>();
         for (int i = 0; i < numPlayers; i++) {
-            String playerId = in.readUTF();
-            String name = in.readUTF();
+            int seat = in.readUnsignedByte();
+            String name = seat < seatNames.length ? seatNames[seat] : null;
             int score = in.readInt();
             int level = in.readInt();
             int combo = in.readInt();
             int moves = in.readInt();
-            PlayerInfo player = new PlayerInfo(name, playerId);
+            PlayerInfo player = new PlayerInfo(name, seat == this.seat ? playerId : null);
+            player.setSeat(seat);
             player.setScore(score);
             player.setLevel(level);
             player.setCombo(combo);
@@ -230,22 +467,19 @@ public class GameEngine {
     }
 
     public int[] getBoardData() {
-        synchronized (board) {
+        synchronized (boardLock) {
             return board.clone(); // Return a copy of the board data
         }
     }
+    // the board packed like Protocol.writeBoard, for a board of the room's size
     public void sendPuzzleDataToServer(int[] boardData) throws IOException {
-        out.writeByte('P'); // 'U' indicates upload puzzle
-        out.flush(); // Ensure the command byte is sent
-
-        // Send the length of the data (number of ints)
-        out.writeInt(boardData.length);
-
-        // Send the int[] data directly
-        for (int value : boardData) {
-            out.writeInt(value);
+        try {
+            Protocol.writeBoard(frames.begin('P'), boardData); // 'P' indicates upload puzzle
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Puzzle cannot be sent: " + e.getMessage(), e);
         }
-        out.flush(); // Ensure all data is sent
+        frames.end();
+        out.flush(); // Send the command and data in one write
         System.out.println("Client: Sent puzzle data to server.");
     }
 
@@ -259,25 +493,41 @@ public class GameEngine {
 
         System.out.println("Client: Sending direction: " + dir.charAt(0));
         // Send direction to server
-        out.writeByte(dir.charAt(0));
+        frames.write(dir.charAt(0));
         out.flush();
     }
 
     private boolean isMyTurn() {
-        return currentPlayerId != null && currentPlayerId.equals(playerId);
+        return seat >= 0 && currentSeat == seat;
     }
 
-    public void updateCurrentPlayer(String currentPlayerId) {
-        this.currentPlayerId = currentPlayerId;
+    public void updateCurrentPlayer(int currentSeat) {
+        this.currentSeat = currentSeat;
         if (gameWindow != null) {
-            gameWindow.updateCurrentPlayer(currentPlayerId);
+            gameWindow.updateCurrentPlayer(currentSeat);
         }
     }
 
 
     public int getValue(int r, int c) {
-        synchronized (board) {
-            return board[r * SIZE + c];
+        synchronized (boardLock) {
+            return board[r * size + c];
+        }
+    }
+
+    public int getSize() {
+        synchronized (boardLock) {
+            return size;
+        }
+    }
+
+    // the room settled on a board size when the game started
+    private void setBoardSize(int newSize) {
+        synchronized (boardLock) {
+            if (newSize != size) {
+                size = newSize;
+                board = new int[newSize * newSize];
+            }
         }
     }
 
@@ -292,11 +542,12 @@ public class GameEngine {
     }
 
     public void requestTopScores() throws IOException {
-        out.writeByte('t');
+        frames.write('t');
         out.flush();
     }
 
     public void stop() {
+        stopped = true;
         try {
             if (receiverThread != null && receiverThread.isAlive()) {
                 receiverThread.interrupt();
@@ -323,6 +574,14 @@ public class GameEngine {
         return playerId;
     }
 
+    public long getGameSeed() {
+        return gameSeed;
+    }
+
+    public int getSeat() {
+        return seat;
+    }
+
     public List<PlayerInfo> getPlayers() {
         return players;
     }
@@ -0,0 +1,413 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Append-only record of every game the server plays, enough to replay it with GameReplay.
+ * Rooms append to memory-mapped segment files journal-NNNNNN.seg of SEGMENT_BYTES each. A
+ * record takes its place with one atomic add and is copied into the mapped segment, so the
+ * room's move path never waits for a lock or a disk. The next segment is mapped ahead of time
+ * on the journal's own thread; if it is not ready when a segment fills, records are dropped
+ * and counted rather than waited for.
+ *
+ * A segment starts with MAGIC, FORMAT and its number, then records until a zero length:
+ *   short length of the whole record, int game, byte kind, byte seat, int millis since the
+ *   game's previous record, then the payload of the kind.
+ * The kind is the Bitboard direction of a move, or one of PUZZLE (the uploaded board, packed
+ * like Protocol.writeBoard), START (seed long, board size, start time long, players: count,
+ * then seat and name each) and END (1 if the game was over, 0 if it was abandoned).
+ * Game numbers restart with the server, a START always begins a new game.
+ *
+ * usage: GameJournal dump segment...            replays every game in the segments
+ *        GameJournal compact output segment...  writes the games of rolled-over segments one after another
+ */
+public class GameJournal {
+    // set with -Djoker.journal.dir to record games there, without it there is no journal; -Djoker.journal.segmentBytes
+    public static final String DIR = System.getProperty("joker.journal.dir", "");
+    public static final int SEGMENT_BYTES = Integer.getInteger("joker.journal.segmentBytes", 64 << 20);
+
+    public static final int MAGIC = 0x4A4B4A4E;
+    public static final int FORMAT = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int MAX_RECORD_BYTES = 0xFFFF;
+    // longer names are cut in START records
+    private static final int MAX_NAME_LENGTH = 64;
+
+    public static final int PUZZLE = 4;
+    public static final int START = 5;
+    public static final int END = 6;
+
+    private final Path dir;
+    private final AtomicReference<Segment> current = new AtomicReference<>();
+    private final AtomicReference<Segment> next = new AtomicReference<>();
+    // maps segments ahead and forces full ones to disk, off the rooms' threads
+    private final ExecutorService mapper = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger games = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private static final class Segment {
+        final int number;
+        final MappedByteBuffer buffer;
+        final AtomicInteger position = new AtomicInteger(HEADER_BYTES);
+
+        Segment(int number, MappedByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+
+        // offset of length free bytes, or -1 when the segment is full
+        int reserve(int length) {
+            if (position.get() > buffer.capacity()) return -1;
+            int at = position.getAndAdd(length);
+            return at <= buffer.capacity() - length ? at : -1;
+        }
+    }
+
+    // a journal that records nothing
+    private GameJournal() {
+        this.dir = null;
+    }
+
+    private GameJournal(Path dir, int firstSegment) throws IOException {
+        this.dir = dir;
+        current.set(map(firstSegment));
+        mapper.execute(() -> prepare(firstSegment + 1));
+    }
+
+    // the journal in DIR, numbered on from the segments already there; without DIR, or if it
+    // can not be opened, a journal that records nothing
+    public static GameJournal open() {
+        if (DIR.isEmpty()) {
+            return new GameJournal();
+        }
+        try {
+            Path dir = Paths.get(DIR);
+            Files.createDirectories(dir);
+            int last = 0;
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "journal-*.seg")) {
+                for (Path segment : segments) {
+                    String name = segment.getFileName().toString();
+                    last = Math.max(last, Integer.parseInt(name.substring(8, name.length() - 4)));
+                }
+            }
+            GameJournal journal = new GameJournal(dir, last + 1);
+            System.out.println("Journal: writing games to " + dir.toAbsolutePath() + " from segment " + (last + 1));
+            return journal;
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Journal: can not open " + DIR + ", games are not recorded: " + e);
+            return new GameJournal();
+        }
+    }
+
+    /** The records of one game, appended by its room only. */
+    public final class Game {
+        private final int id;
+        private long lastMillis = System.currentTimeMillis();
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(record);
+
+        private Game(int id) {
+            this.id = id;
+        }
+
+        public void move(int seat, int direction) {
+            begin(direction, seat);
+            append();
+        }
+
+        public void puzzle(int seat, int[] board) {
+            try {
+                Protocol.writeBoard(begin(PUZZLE, seat), board);
+            } catch (IOException e) {
+                // writing to memory does not fail
+                throw new UncheckedIOException(e);
+            }
+            append();
+        }
+
+        public void end(boolean gameOver) {
+            try {
+                begin(END, 0).writeByte(gameOver ? 1 : 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            append();
+        }
+
+        private DataOutputStream begin(int kind, int seat) {
+            long now = System.currentTimeMillis();
+            record.reset();
+            try {
+                out.writeShort(0); // the length, filled in by append
+                out.writeInt(id);
+                out.writeByte(kind);
+                out.writeByte(seat);
+                out.writeInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, now - lastMillis)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lastMillis = now;
+            return out;
+        }
+
+        private void append() {
+            GameJournal.this.append(record.toByteArray());
+        }
+    }
+
+    // the game a room starts, with the seed and size GameReplay needs and the players' names by seat
+    public Game startGame(long seed, int size, String[] namesBySeat) {
+        Game game = new Game(games.incrementAndGet());
+        try {
+            DataOutputStream out = game.begin(START, 0);
+            out.writeLong(seed);
+            out.writeByte(size);
+            out.writeLong(game.lastMillis);
+            int players = 0;
+            for (String name : namesBySeat) {
+                if (name != null) players++;
+            }
+            out.writeByte(players);
+            for (int seat = 0; seat < namesBySeat.length; seat++) {
+                if (namesBySeat[seat] != null) {
+                    String name = namesBySeat[seat];
+                    out.writeByte(seat);
+                    out.writeUTF(name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        game.append();
+        return game;
+    }
+
+    public long droppedRecords() {
+        return dropped.get();
+    }
+
+    // force what has been written to disk, at shutdown
+    public void close() {
+        Segment segment = current.get();
+        if (segment != null) {
+            segment.buffer.force();
+        }
+        mapper.shutdown();
+    }
+
+    private void append(byte[] record) {
+        if (dir == null) return;
+        if (record.length > MAX_RECORD_BYTES) {
+            dropped.incrementAndGet();
+            return;
+        }
+        while (true) {
+            Segment segment = current.get();
+            int at = segment.reserve(record.length);
+            if (at >= 0) {
+                // the body first and the length last, a reader stops at a record whose length is not written yet
+                ByteBuffer target = segment.buffer.duplicate();
+                target.position(at + 2);
+                target.put(record, 2, record.length - 2);
+                segment.buffer.putShort(at, (short) record.length);
+                return;
+            }
+            Segment following = next.get();
+            if (current.get() != segment) {
+                // another room has rolled over already
+                continue;
+            }
+            if (following == null || following.number <= segment.number) {
+                // the next segment is not mapped yet, dropping the record is better than waiting for it
+                if (dropped.getAndIncrement() == 0) {
+                    System.out.println("Journal: segment " + segment.number + " is full before the next one is ready, dropping records.");
+                }
+                return;
+            }
+            if (current.compareAndSet(segment, following)) {
+                mapper.execute(() -> {
+                    segment.buffer.force();
+                    prepare(following.number + 1);
+                });
+            }
+        }
+    }
+
+    // map the segment after the current one, on the mapper thread
+    private void prepare(int number) {
+        try {
+            next.set(map(number));
+        } catch (IOException e) {
+            System.out.println("Journal: can not map segment " + number + ": " + e);
+        }
+    }
+
+    private Segment map(int number) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve(String.format("journal-%06d.seg", number)).toFile(), "rw")) {
+            file.setLength(SEGMENT_BYTES);
+            // the mapping stays valid after the file is closed
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT);
+        buffer.putInt(8, number);
+        return new Segment(number, buffer);
+    }
+
+    // ---- reading, for the offline tools ----
+
+    /** One record as read back. */
+    static final class Record {
+        final int game;
+        final int kind;
+        final int seat;
+        final int millis;
+        // the whole record as it was written
+        final byte[] bytes;
+
+        Record(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            this.bytes = bytes;
+            this.game = buffer.getInt(2);
+            this.kind = buffer.get(6) & 0xFF;
+            this.seat = buffer.get(7) & 0xFF;
+            this.millis = buffer.getInt(8);
+        }
+
+        DataInputStream payload() {
+            return new DataInputStream(new ByteArrayInputStream(bytes, 12, bytes.length - 12));
+        }
+    }
+
+    // the records of a segment or compacted file, in the order they were appended
+    static List<Record> read(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            throw new IOException(path + " is not a journal segment");
+        }
+        List<Record> records = new ArrayList<>();
+        int at = HEADER_BYTES;
+        while (at + 2 <= buffer.limit()) {
+            int length = buffer.getShort(at) & 0xFFFF;
+            if (length == 0 || at + length > buffer.limit()) break;
+            byte[] bytes = new byte[length];
+            buffer.position(at);
+            buffer.get(bytes);
+            records.add(new Record(bytes));
+            at += length;
+        }
+        return records;
+    }
+
+    // the records of every game that starts in the given files, a game's records together in order;
+    // records of a game whose START is not among them are left out
+    static List<List<Record>> games(List<Path> paths) throws IOException {
+        List<List<Record>> games = new ArrayList<>();
+        Map<Integer, List<Record>> open = new HashMap<>();
+        for (Path path : paths) {
+            for (Record record : read(path)) {
+                if (record.kind == START) {
+                    List<Record> game = new ArrayList<>();
+                    games.add(game);
+                    open.put(record.game, game);
+                }
+                List<Record> game = open.get(record.game);
+                if (game != null) {
+                    game.add(record);
+                }
+            }
+        }
+        return games;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("dump")) {
+            dump(paths(args, 1));
+        } else if (args.length >= 3 && args[0].equals("compact")) {
+            compact(Paths.get(args[1]), paths(args, 2));
+        } else {
+            System.out.println("usage: GameJournal dump segment...");
+            System.out.println("       GameJournal compact output segment...");
+        }
+    }
+
+    private static List<Path> paths(String[] args, int from) {
+        List<Path> paths = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            paths.add(Paths.get(args[i]));
+        }
+        return paths;
+    }
+
+    // one line per game: who played, how long, and the outcome replayed from the seed and the moves
+    private static void dump(List<Path> paths) throws IOException {
+        for (List<Record> game : games(paths)) {
+            DataInputStream start = game.get(0).payload();
+            long seed = start.readLong();
+            int size = start.readUnsignedByte();
+            long startMillis = start.readLong();
+            StringBuilder players = new StringBuilder();
+            for (int n = start.readUnsignedByte(); n > 0; n--) {
+                players.append(' ').append(start.readUnsignedByte()).append(':').append(start.readUTF());
+            }
+            GameReplay replay = new GameReplay(seed, size);
+            long millis = 0;
+            int moves = 0;
+            String end = "still open";
+            for (Record record : game.subList(1, game.size())) {
+                millis += record.millis;
+                if (record.kind < PUZZLE) {
+                    replay.move(record.kind);
+                    moves++;
+                } else if (record.kind == PUZZLE) {
+                    int[] puzzle = new int[size * size];
+                    Protocol.readBoard(record.payload(), puzzle);
+                    replay.upload(puzzle);
+                } else if (record.kind == END) {
+                    end = record.payload().readUnsignedByte() == 1 ? "game over" : "abandoned";
+                }
+            }
+            System.out.printf("game %d  %tF %<tT  %dx%d  seed %d  players%s  %d moves in %.1f s  score %d  level %d  %s%n",
+                    game.get(0).game, startMillis, size, size, seed, players, moves, millis / 1000.0,
+                    replay.getScore(), replay.getLevel(), end);
+        }
+    }
+
+    // the games of the segments one after another, in the order they started, without the unused space
+    // of the segments; only for segments the server has rolled over, not the one it is writing to
+    private static void compact(Path output, List<Path> paths) throws IOException {
+        List<List<Record>> games = games(paths);
+        long records = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(0);
+            out.writeInt(0);
+            for (List<Record> game : games) {
+                for (Record record : game) {
+                    out.write(record.bytes);
+                    records++;
+                }
+            }
+            out.writeShort(0);
+        }
+        System.out.println("Compacted " + games.size() + " games, " + records + " records into " + output
+                + " (" + Files.size(output) + " bytes)");
+    }
+}
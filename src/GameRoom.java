@@ -2,64 +2,423 @@ import java.io.*;
 import java.net.Socket;
 import java.sql.SQLException;
 import java.util.*;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One game of up to four players.
+ * The room is an actor: the public methods only post work to its mailbox, and the mailbox
+ * applies joins, moves, puzzle uploads and removals one at a time on a shared worker pool.
+ * Everything else in this class runs inside the mailbox and is not thread safe on its own.
+ */
 public class GameRoom {
-    private static final int MAX_PLAYERS = 4;
-    private List<Socket> players = new ArrayList<>();
-    private Map<String, PlayerInfo> playerInfoMap = new HashMap<>();
-    private Map<Socket, DataOutputStream> clientOutputMap = new HashMap<>();
+    static final int MAX_PLAYERS = 4;
+    // how long players may stay in a finished room before it is closed, set with -Djoker.finishedRoomLingerMillis
+    private static final int FINISHED_LINGER_MILLIS = Integer.getInteger("joker.finishedRoomLingerMillis", 60_000);
+    // a player alone in the lobby this long gets a bot to play with, negative for no bots; -Djoker.bot.fillAfterMillis
+    private static final int BOT_FILL_AFTER_MILLIS = Integer.getInteger("joker.bot.fillAfterMillis", 10_000);
+    // how long a recovered room keeps the seats of players who have not reconnected; -Djoker.snapshot.rejoinMillis
+    static final int REJOIN_MILLIS = Integer.getInteger("joker.snapshot.rejoinMillis", 60_000);
+
+    // WAITING in the lobby, PLAYING, FINISHED after game over, CLOSED once the room is released
+    public enum State { WAITING, PLAYING, FINISHED, CLOSED }
+
+    // players in joining order, which is also the turn order
+    private List<Seat> players = new ArrayList<>();
+    // the same players by seat number
+    private final Seat[] seats = new Seat[MAX_PLAYERS];
+    // watching without a seat, they get the players' frames through the feed, which exists while anyone watches;
+    // feedSeat is where the room writes them, see audience()
+    private final List<Seat> spectators = new ArrayList<>();
+    private SpectatorFeed feed;
+    private Seat feedSeat;
     private int currentPlayerIndex = 0;
     private int movesRemaining = 4;
-    private boolean gameStarted = false;
+    // only changed inside the mailbox, volatile for getState()
+    private volatile State state = State.WAITING;
     private boolean puzzleUploadedInGame = false;
-    public static final int LIMIT = 14;
-    public static final int SIZE = 4;
-    final int[] board = new int[SIZE * SIZE];
+    public static final int LIMIT = GameRules.LIMIT;
+    public static final int SIZE = GameRules.SIZE;
+    // board size of a game started without asking for one, set with -Djoker.boardSize
+    private static final int DEFAULT_BOARD_SIZE = Integer.getInteger("joker.boardSize", SIZE);
+    // size x size cells, the size is settled when the game starts
+    private int size = SIZE;
+    int[] board = new int[SIZE * SIZE];
+    // the board as the players last saw it, and the number of that broadcast
     private int[] previousBoardState = new int[SIZE * SIZE];
-    Random random = new Random();
+    private int boardSeq;
+    // every new tile comes from this generator, seeded with a seed the players get in 'G', so the
+    // game can be replayed from the seed and the moves, see GameReplay;
+    // only used inside the mailbox so it needs no locking
+    private final long seed;
+    private final SplittableRandom random;
+    // names the room's checkpoint files, kept across a restart
+    private final long id;
     private int combo;
     private int numOfTilesMoved;
     private int totalMoveCount;
     private boolean gameOver;
     private int level = 1;
+    private final GameRules.Result moveResult = new GameRules.Result();
     private int score;
-    private final Map<String, Runnable> actionMap = new HashMap<>();
-    private Map<Socket, String> clientSocketIdMap = new HashMap<>();
+    // move commands and their Bitboard directions
+    private final Map<String, Integer> actionMap = new HashMap<>();
+    private final Mailbox mailbox;
+    // seats handed out by the matchmaker, SEATS_CLOSED once the game has started
+    private static final int SEATS_CLOSED = -1;
+    private final AtomicInteger reservedSeats = new AtomicInteger();
+    private final Matchmaker matchmaker;
+    private final ScheduledExecutorService timer;
+    private final GameJournal journal;
+    // records of the game once it has started, null in the lobby
+    private GameJournal.Game journaled;
+    private final RoomStore store;
+    // inputs accepted since the last checkpoint, in RoomStore's log format, and the counts checkpointed so far
+    private final ByteArrayOutputStream newInputs = new ByteArrayOutputStream(64);
+    private final DataOutputStream newInputsOut = new DataOutputStream(newInputs);
+    private int inputCount;
+    private long inputBytes;
+    // something a snapshot holds changed since the last checkpoint
+    private boolean changed;
+    // counts the turns, so a bot move scheduled for an earlier turn is dropped
+    private int turn;
+    // seated with bots only, for load tests; such a room is never joined and plays until game over
+    private boolean botRoom;
+
+    // one player of the room, index is the seat number clients see from SEAT_INDICES on;
+    // spectators and the spectator feed are seats with index -1 and no info
+    private static final class Seat {
+        final int index;
+        final Socket socket;
+        final PlayerInfo info;
+        final Outbox outbox;
+        // every frame to the player goes through here, framed or not depending on the version
+        final FrameWriter frames;
+        final int version;
+        // set for a bot, which has no socket and no outbox and whose frames go nowhere;
+        // a seat with neither is a player of a recovered room who has not reconnected yet
+        final Bot bot;
+
+        Seat(int index, Socket socket, PlayerInfo info, Outbox outbox, int version) {
+            this.index = index;
+            this.socket = socket;
+            this.info = info;
+            this.outbox = outbox;
+            this.frames = new FrameWriter(outbox.out(), version >= Protocol.FRAMED);
+            this.version = version;
+            this.bot = null;
+        }
+
+        Seat(int index, PlayerInfo info, Bot bot) {
+            this.index = index;
+            this.socket = null;
+            this.info = info;
+            this.outbox = null;
+            this.frames = new FrameWriter(new DataOutputStream(DISCARD), false);
+            this.version = Protocol.VERSION;
+            this.bot = bot;
+        }
+
+        boolean isBot() {
+            return bot != null;
+        }
+
+        boolean isConnected() {
+            return outbox != null;
+        }
+
+        boolean usesSeatIndices() {
+            return version >= Protocol.SEAT_INDICES;
+        }
+    }
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public GameRoom(Matchmaker matchmaker, Executor workers, ScheduledExecutorService timer, GameJournal journal, RoomStore store) {
+        this(matchmaker, workers, timer, journal, store, matchmaker.newRoomId(), ThreadLocalRandom.current().nextLong());
+    }
+
+    // a room with the id and seed of a checkpointed room, see restore
+    GameRoom(Matchmaker matchmaker, Executor workers, ScheduledExecutorService timer, GameJournal journal, RoomStore store,
+             long id, long seed) {
+        this.matchmaker = matchmaker;
+        this.timer = timer;
+        this.journal = journal;
+        this.store = store;
+        this.id = id;
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+        this.mailbox = new Mailbox(workers);
+        actionMap.put("U", Bitboard.UP);
+        actionMap.put("D", Bitboard.DOWN);
+        actionMap.put("L", Bitboard.LEFT);
+        actionMap.put("R", Bitboard.RIGHT);
+        GameRules.spawn(board, level, random);
+    }
+
+    // add player to room, completes with false if the game has already started
+    public CompletableFuture<Boolean> addPlayer(Socket clientSocket, PlayerInfo playerInfo, Outbox out, int version) {
+        CompletableFuture<Boolean> joined = new CompletableFuture<>();
+        post(() -> {
+            try {
+                joined.complete(onJoin(clientSocket, playerInfo, out, version));
+            } catch (RuntimeException e) {
+                joined.completeExceptionally(e);
+                throw e;
+            }
+        });
+        return joined;
+    }
+
+    // a command from a player; puzzle holds the board of a 'P' upload and is null otherwise
+    public void handleClientData(char data, Socket clientSocket, int[] puzzle) {
+        post(() -> onCommand(data, clientSocket, puzzle));
+    }
+
+    // a 'P' upload packed like Protocol.writeBoard, unpacked once the room's board size is certain
+    public void handlePackedPuzzle(Socket clientSocket, byte[] packed) {
+        post(() -> onCommand('P', clientSocket, unpackPuzzle(packed)));
+    }
+
+    // the uploaded board, or an empty one that validateBoardData rejects if it is packed for another size
+    private int[] unpackPuzzle(byte[] packed) {
+        int cells = size * size;
+        if (packed.length != (cells + Protocol.PACKED_CELLS - 1) / Protocol.PACKED_CELLS * Long.BYTES) {
+            return new int[0];
+        }
+        int[] puzzle = new int[cells];
+        try {
+            Protocol.readBoard(new DataInputStream(new ByteArrayInputStream(packed)), puzzle);
+        } catch (IOException e) {
+            // the length is checked, reading memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return puzzle;
+    }
+
+    // the first player starts the game and asks for a board size from BOARD_SIZES on
+    public void requestStart(Socket clientSocket, int boardSize) {
+        post(() -> {
+            if (state == State.WAITING && seatOf(clientSocket) != null && isFirstPlayer(clientSocket)) {
+                startGame(clientSocket, boardSize);
+            }
+        });
+    }
+
+    // seat MAX_PLAYERS bots, which start playing right away; the room is not in matchmaking
+    public void fillWithBots() {
+        post(() -> {
+            botRoom = true;
+            while (state == State.WAITING && addBot()) {
+                // the last bot starts the game
+            }
+        });
+    }
+
+    public boolean isBotRoom() {
+        return botRoom;
+    }
+
+    // watch the room without a seat, whatever state it is in; completes with false once it is closed
+    public CompletableFuture<Boolean> addSpectator(Socket clientSocket, Outbox out, int version) {
+        CompletableFuture<Boolean> joined = new CompletableFuture<>();
+        post(() -> {
+            try {
+                joined.complete(onWatch(clientSocket, out, version));
+            } catch (RuntimeException e) {
+                joined.completeExceptionally(e);
+                throw e;
+            }
+        });
+        return joined;
+    }
+
+    // give a player of a recovered room their seat back, completes with false if the room no longer keeps it
+    public CompletableFuture<Boolean> rejoin(Socket clientSocket, PlayerInfo playerInfo, Outbox out, int version) {
+        CompletableFuture<Boolean> rejoined = new CompletableFuture<>();
+        post(() -> {
+            try {
+                rejoined.complete(onRejoin(clientSocket, playerInfo, out, version));
+            } catch (RuntimeException e) {
+                rejoined.completeExceptionally(e);
+                throw e;
+            }
+        });
+        return rejoined;
+    }
+
+    // hand the store a snapshot if the game changed since the last one, completes once it is queued
+    public CompletableFuture<Void> checkpoint() {
+        CompletableFuture<Void> queued = new CompletableFuture<>();
+        mailbox.execute(() -> {
+            try {
+                onCheckpoint();
+            } finally {
+                queued.complete(null);
+            }
+        });
+        return queued;
+    }
+
+    // carry on with a game checkpointed by an earlier run of the server
+    public void restore(RoomStore.Snapshot snapshot) {
+        post(() -> onRestore(snapshot));
+    }
+
+    public void removePlayer(Socket clientSocket) {
+        post(() -> onLeave(clientSocket));
+    }
+
+    // write a frame with an already encoded payload to one player or spectator, in order with the room's own frames
+    public void sendToPlayer(Socket clientSocket, char type, byte[] payload) {
+        post(() -> {
+            Seat seat = seatOf(clientSocket);
+            if (seat == null) seat = spectatorOf(clientSocket);
+            if (seat != null) {
+                try {
+                    seat.frames.write(type, payload);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
 
+    // close the room and its connections, whatever state it is in
+    public void close() {
+        mailbox.execute(this::onClose);
+    }
+
+    public State getState() {
+        return state;
+    }
 
-    public GameRoom() {
-        actionMap.put("U", this::moveUp);
-        actionMap.put("D", this::moveDown);
-        actionMap.put("L", this::moveLeft);
-        actionMap.put("R", this::moveRight);
-        nextRound();
+    // positive, and the same after a restart
+    public long getId() {
+        return id;
     }
 
-    // add player to room
-    public boolean addPlayer(Socket clientSocket, PlayerInfo playerInfo, DataOutputStream out) {
-        if (gameStarted) {
+    // Frames written while handling an event stay in each player's outbox;
+    // flushing once at the end queues everything the event produced as one write per player.
+    private void post(Runnable event) {
+        mailbox.execute(() -> {
+            try {
+                event.run();
+            } finally {
+                flushAll();
+            }
+        });
+    }
+
+    private void flushAll() {
+        for (Seat seat : players) {
+            if (seat.isConnected()) seat.outbox.flush();
+        }
+        for (Seat spectator : spectators) {
+            spectator.outbox.flush();
+        }
+        if (feed != null) {
+            feed.publish();
+        }
+    }
+
+    // everyone the room broadcasts to: the players and, while anyone watches, the spectator feed
+    private List<Seat> audience() {
+        if (feedSeat == null) return players;
+        List<Seat> audience = new ArrayList<>(players.size() + 1);
+        audience.addAll(players);
+        audience.add(feedSeat);
+        return audience;
+    }
+
+    private boolean onJoin(Socket clientSocket, PlayerInfo playerInfo, Outbox out, int version) {
+        if (state != State.WAITING) {
             // Game has already started, cannot join
             return false;
         }
-        players.add(clientSocket);
-        playerInfoMap.put(playerInfo.getPlayerId(), playerInfo);
-        clientOutputMap.put(clientSocket, out);
-        clientSocketIdMap.put(clientSocket, playerInfo.getPlayerId());
-        // Send whether the player is the first player
+        int index = 0;
+        while (index < MAX_PLAYERS && seats[index] != null) index++;
+        if (index == MAX_PLAYERS) {
+            return false;
+        }
+        Seat seat = new Seat(index, clientSocket, playerInfo, out, version);
+        seats[index] = seat;
+        players.add(seat);
+        sendFirstPlayer(seat);
+
+        // Send updated player list to all players
+        sendPlayerListToAll();
+
+        // If the room is full, start the game
+        if (PlayerisFull()) {
+            startGame(clientSocket, DEFAULT_BOARD_SIZE);
+        } else if (players.size() == 1 && BOT_FILL_AFTER_MILLIS >= 0) {
+            timer.schedule(() -> post(this::fillLobby), BOT_FILL_AFTER_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    // Send whether the player is the first player
+    private void sendFirstPlayer(Seat seat) {
         try {
-            out.writeByte('F'); // 'F' indicates first player notification
-            out.writeBoolean(isFirstPlayer(clientSocket));
-            out.flush();
+            DataOutputStream frame = seat.frames.begin('F'); // 'F' indicates first player notification
+            frame.writeBoolean(isFirstPlayer(seat.socket));
+            if (seat.usesSeatIndices()) {
+                frame.writeByte(seat.index); // and the player's own seat
+            }
+            seat.frames.end();
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        // Send updated player list to all players
-        sendPlayerListToAll();
+    // nobody came to play with the player waiting in the lobby, a bot does
+    private void fillLobby() {
+        if (state == State.WAITING && players.size() == 1 && !players.get(0).isBot()) {
+            addBot();
+        }
+    }
 
+    // seat a bot like a joining player, false if the room has no free seat
+    private boolean addBot() {
+        if (!tryReserveSeat()) {
+            return false;
+        }
+        if (!hasFreeSeat()) {
+            matchmaker.remove(this);
+        }
+        int index = 0;
+        while (seats[index] != null) index++;
+        Seat seat = new Seat(index, Bot.newPlayer(), new Bot());
+        seats[index] = seat;
+        players.add(seat);
+        System.out.println(seat.info.getName() + " joined the room.");
+        sendPlayerListToAll();
+        if (PlayerisFull()) {
+            startGame(null, DEFAULT_BOARD_SIZE);
+        }
         return true;
     }
 
+    private boolean hasHumans() {
+        for (Seat seat : players) {
+            if (!seat.isBot()) return true;
+        }
+        return false;
+    }
+
 
     // Check if the room is full
     public boolean PlayerisFull() {
@@ -68,99 +427,209 @@ public class GameRoom {
 
     // Check if the game has started
     public boolean isStarted() {
-        return gameStarted;
+        return state != State.WAITING;
+    }
+
+    // claim a seat for a joining player, fails once the room is full or started
+    public boolean tryReserveSeat() {
+        while (true) {
+            int seats = reservedSeats.get();
+            if (seats == SEATS_CLOSED || seats >= MAX_PLAYERS) {
+                return false;
+            }
+            if (reservedSeats.compareAndSet(seats, seats + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean hasFreeSeat() {
+        int seats = reservedSeats.get();
+        return seats != SEATS_CLOSED && seats < MAX_PLAYERS;
     }
 
-    // Check if it is the first player
+    // give a lobby seat back, putting the room back into matchmaking if it was full
+    private void releaseSeat() {
+        while (true) {
+            int seats = reservedSeats.get();
+            if (seats == SEATS_CLOSED || seats == 0) {
+                return;
+            }
+            if (reservedSeats.compareAndSet(seats, seats - 1)) {
+                if (seats == MAX_PLAYERS) {
+                    matchmaker.reopen(this);
+                }
+                return;
+            }
+        }
+    }
+
+    // no more joins once the game is running or over
+    private void closeSeats() {
+        reservedSeats.set(SEATS_CLOSED);
+        matchmaker.remove(this);
+    }
+
+    // Check if it is the first player; bots never start a game, so this is the first human
     public boolean isFirstPlayer(Socket clientSocket) {
-        return players.get(0).equals(clientSocket);
+        for (Seat seat : players) {
+            if (!seat.isBot()) return seat.socket == clientSocket;
+        }
+        return false;
+    }
+
+    // at most MAX_PLAYERS seats to look at, cheaper than hashing the socket
+    private Seat seatOf(Socket clientSocket) {
+        for (Seat seat : seats) {
+            if (seat != null && seat.socket == clientSocket) {
+                return seat;
+            }
+        }
+        return null;
+    }
+
+    // take the player out of the room; if it was their turn the next player gets a full turn
+    private void leave(Seat seat) {
+        int index = players.indexOf(seat);
+        if (index < 0) return;
+        players.remove(index);
+        seats[seat.index] = null;
+        if (state == State.WAITING) {
+            releaseSeat();
+        } else if (state == State.PLAYING && !players.isEmpty()) {
+            changed = true;
+            if (index < currentPlayerIndex) {
+                currentPlayerIndex--;
+            } else if (index == currentPlayerIndex) {
+                currentPlayerIndex %= players.size();
+                movesRemaining = 4;
+                notifyCurrentPlayer();
+            }
+        }
+        if (!hasHumans() && (state != State.WAITING || reservedSeats.compareAndSet(players.size(), SEATS_CLOSED))) {
+            // nobody left but bots and, in the lobby, nobody on the way in either
+            onClose();
+        }
     }
 
     // start game
-    public void startGame(Socket starterSocket) {
+    private void startGame(Socket starterSocket, int requestedSize) {
+        if (players.size() < 2 && BOT_FILL_AFTER_MILLIS >= 0) {
+            // rather than waiting on, the player gets a bot to play with
+            addBot();
+        }
         if (players.size() < 2) {
             String message = "At least 2 players are required to start the game.";
             if (starterSocket != null) {
-                DataOutputStream out = clientOutputMap.get(starterSocket);
-                try {
-                    out.writeByte('M');
-                    out.writeUTF(message);
-                    out.flush();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                sendMessageToClient(starterSocket, message);
             } else {
-
-                for (DataOutputStream out : clientOutputMap.values()) {
-                    try {
-                        out.writeByte('M');
-                        out.writeUTF(message);
-                        out.flush();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+                broadcastMessage(message);
             }
             return;
         }
-        gameStarted = true;
-        System.out.println("Game started!");
+        state = State.PLAYING;
+        closeSeats();
+        int boardSize = chooseBoardSize(requestedSize);
+        if (boardSize != size) {
+            size = boardSize;
+            board = new int[size * size];
+            previousBoardState = new int[size * size];
+            GameRules.spawn(board, level, random);
+        }
+        System.out.println("Game started on a " + size + "x" + size + " board, seed " + seed + "!");
+        String[] names = new String[MAX_PLAYERS];
+        for (Seat seat : players) {
+            names[seat.index] = seat.info.getName();
+        }
+        journaled = journal.startGame(seed, size, names);
+        changed = true;
         notifyAllPlayersGameStart();
     }
 
-    public void sendPlayerListToAll() {
-        Iterator<Socket> iterator = players.iterator();
-        while (iterator.hasNext()) {
-            Socket s = iterator.next();
-            if (s.isClosed() || !s.isConnected()) {
+    // the requested size if every player's client can show it, otherwise the classic 4x4 board
+    private int chooseBoardSize(int requested) {
+        if (requested == SIZE) return SIZE;
+        String problem = null;
+        if (requested < SIZE || requested > GameRules.MAX_SIZE) {
+            problem = "Board size " + requested + " is not supported";
+        } else {
+            for (Seat seat : players) {
+                if (seat.version < Protocol.BOARD_SIZES) {
+                    problem = seat.info.getName() + "'s client can not show a " + requested + "x" + requested + " board";
+                    break;
+                }
+            }
+        }
+        if (problem != null) {
+            broadcastMessage(problem + ", playing on " + SIZE + "x" + SIZE + ".");
+            return SIZE;
+        }
+        return requested;
+    }
+
+    private void sendPlayerListToAll() {
+        for (Seat seat : new ArrayList<>(players)) {
+            Socket s = seat.socket;
+            if (s != null && (s.isClosed() || !s.isConnected())) {
                 // Remove disconnected client
-                iterator.remove();
-                clientOutputMap.remove(s);
-                clientSocketIdMap.remove(s);
-                continue;
+                leave(seat);
             }
-            DataOutputStream out = clientOutputMap.get(s);
-            String playerId = null;
-            try {
-                out.writeByte('L'); // 'L' indicates player list
+        }
+        for (Seat seat : audience()) {
+            sendPlayerList(seat);
+        }
+    }
+
+    private void sendPlayerList(Seat seat) {
+        try {
+            DataOutputStream out = seat.frames.begin('L'); // 'L' indicates player list
+            if (seat.usesSeatIndices()) {
+                // names by seat, the ids are never needed by the other players
+                out.writeByte(players.size());
+                for (Seat player : players) {
+                    out.writeByte(player.index);
+                    out.writeUTF(player.info.getName());
+                }
+            } else {
                 out.writeInt(players.size());
-                for (Socket playerSocket : players) {
-                    playerId = clientSocketIdMap.get(playerSocket);
-                    PlayerInfo playerInfo = playerInfoMap.get(playerId);
-                    out.writeUTF(playerInfo.getName());
-                    out.writeUTF(playerId);
+                for (Seat player : players) {
+                    out.writeUTF(player.info.getName());
+                    out.writeUTF(player.info.getPlayerId());
                 }
-                out.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-                // If write fails, client might be disconnected, remove client
-                iterator.remove();
-                clientOutputMap.remove(s);
-                clientSocketIdMap.remove(s);
-                playerInfoMap.remove(playerId);
             }
+            seat.frames.end();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
 
     private void notifyAllPlayersGameStart() {
-        for (Socket s : players) {
-            DataOutputStream out = clientOutputMap.get(s);
-            try {
-                out.writeByte('G'); // 'G' mean game start
-                out.flush();
-                sendGameStateToAll();
-                System.out.println("Notifying all players that the game has started.");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        for (Seat seat : audience()) {
+            sendGameStart(seat);
         }
+        System.out.println("Notifying all players that the game has started.");
+        sendGameStateToAll(true);
         notifyCurrentPlayer();
     }
-    private void updatePlayerDataAndBroadcast(Socket clientSocket) {
+    private void sendGameStart(Seat seat) {
+        try {
+            DataOutputStream out = seat.frames.begin('G'); // 'G' mean game start
+            if (seat.version >= Protocol.BOARD_SIZES) {
+                out.writeByte(size); // and the size of the board
+            }
+            if (seat.version >= Protocol.SEEDS) {
+                out.writeLong(seed); // and the seed of every tile to come
+            }
+            seat.frames.end();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void updatePlayerDataAndBroadcast(Seat seat) {
         // Update the player's data
-        String playerId = clientSocketIdMap.get(clientSocket);
-        PlayerInfo playerInfo = playerInfoMap.get(playerId);
+        PlayerInfo playerInfo = seat.info;
 
         if (playerInfo != null) {
             playerInfo.setScore(score);
@@ -174,110 +643,150 @@ public class GameRoom {
     }
 
     private void notifyCurrentPlayer() {
-        Socket currentPlayerSocket = players.get(currentPlayerIndex);
-        String currentPlayerId = clientSocketIdMap.get(currentPlayerSocket);
-        PlayerInfo currentPlayerInfo = playerInfoMap.get(currentPlayerId);
-        String currentPlayerName = currentPlayerInfo.getName();
+        Seat current = players.get(currentPlayerIndex);
+        String currentPlayerId = current.info.getPlayerId();
+        String currentPlayerName = current.info.getName();
         System.out.println("Notifying players that current player is: " + currentPlayerName + " (ID: " + currentPlayerId + ")");
-        for (Socket s : players) {
-            DataOutputStream out = clientOutputMap.get(s);
-            try {
-                out.writeByte('N'); // 'N' indicates notify current player
-                out.writeUTF(currentPlayerId); // Send playerId instead of name
-                out.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+        for (Seat seat : audience()) {
+            sendCurrentPlayer(seat, current);
+        }
+        turn++;
+        scheduleBotMove();
+    }
+
+    private void sendCurrentPlayer(Seat seat, Seat current) {
+        try {
+            DataOutputStream out = seat.frames.begin('N'); // 'N' indicates notify current player
+            if (seat.usesSeatIndices()) {
+                out.writeByte(current.index);
+            } else {
+                out.writeUTF(current.info.getPlayerId()); // Send playerId instead of name
             }
+            seat.frames.end();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    // a bot whose turn it is moves after Bot.MOVE_DELAY_MILLIS, through the mailbox like a player's command
+    private void scheduleBotMove() {
+        Seat current = players.get(currentPlayerIndex);
+        if (current.isBot() && state == State.PLAYING && !gameOver) {
+            int botTurn = turn;
+            timer.schedule(() -> post(() -> onBotMove(current, botTurn)), Bot.MOVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
 
+    private void onBotMove(Seat seat, int botTurn) {
+        if (botTurn != turn || state != State.PLAYING || !isPlayerTurn(seat)) {
+            // the turn moved on, or the room finished or closed, in the meantime
+            return;
+        }
+        char move = seat.bot.chooseMove(board, size);
+        if (move == 0) {
+            // on a full board that no move changes, whatever the bot tries ends the game, see GameSimulator.play
+            move = 'L';
+        }
+        try {
+            moveMerge(String.valueOf(move), seat);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        if (botTurn == turn) {
+            // the same turn, the bot has moves left
+            scheduleBotMove();
+        }
+    }
 
-    public void handleClientData(char data, Socket clientSocket, DataInputStream in) throws SQLException {
-        if (!gameStarted) {
+    private void onCommand(char data, Socket clientSocket, int[] puzzle) {
+        Seat seat = seatOf(clientSocket);
+        if (data == 'A') {
+            // client missed a board delta and asks for the full board again, a spectator can miss one too
+            if (seat != null) {
+                sendBoardSnapshot(seat);
+            } else {
+                Seat spectator = spectatorOf(clientSocket);
+                if (spectator != null) resyncSpectator(spectator);
+            }
+            return;
+        }
+        if (seat == null) {
+            // the player has already left the room, or a spectator sent a player's command
+            return;
+        }
+        if (state == State.WAITING) {
             if (data == 'S' && isFirstPlayer(clientSocket)) {
-                startGame(clientSocket);
+                startGame(clientSocket, DEFAULT_BOARD_SIZE);
             } else {
                 System.out.println("Received unexpected data before game started: '" + data + "'");
             }
-        } else {
+        } else if (state == State.PLAYING) {
             if (actionMap.containsKey(String.valueOf(data))) {
-                moveMerge(String.valueOf(data), clientSocket);
-                updatePlayerDataAndBroadcast(clientSocket);
+                // moveMerge broadcasts the new state itself
+                try {
+                    moveMerge(String.valueOf(data), seat);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
             } else if (data == 'P') {
                 System.out.println("Received 'U' command from client.");
                 // Handle upload puzzle data
-                receivePuzzleData(clientSocket, in);
+                receivePuzzleData(seat, puzzle);
             }  else {
                 System.out.println("Unknown command during game: '" + data + "'");
             }
         }
+        // after game over the final board stays as it is until the room is closed
     }
 
 
 
 
-    private void receivePuzzleData(Socket clientSocket, DataInputStream in) {
-        try {
-            if (puzzleUploadedInGame) {
-                // Send an error message to the client
-                sendMessageToClient(clientSocket, "Puzzle upload has already been used in this game.");
-                return;
-            }
-
-            int length = in.readInt();
-            System.out.println("Server: Receiving puzzle data of length " + length);
-
-            int[] newBoard = new int[length];
-            for (int i = 0; i < length; i++) {
-                newBoard[i] = in.readInt();
-            }
+    private void receivePuzzleData(Seat seat, int[] newBoard) {
+        if (puzzleUploadedInGame) {
+            // Send an error message to the client
+            sendMessageToClient(seat.socket, "Puzzle upload has already been used in this game.");
+            return;
+        }
 
-            // Validate the received board data
-            if (validateBoardData(newBoard)) {
-                // Update the game board
-                synchronized (board) {
-                    System.arraycopy(newBoard, 0, board, 0, board.length);
-                }
+        System.out.println("Server: Receiving puzzle data of length " + newBoard.length);
 
-                // Reset game state variables
-                resetGameState();
+        // Validate the received board data
+        if (validateBoardData(newBoard)) {
+            journaled.puzzle(seat.index, newBoard);
+            recordPuzzle(seat.index, newBoard);
+            // Update the game board and reset game state variables
+            applyPuzzle(newBoard);
 
-                // Set the puzzleUploadedInGame to true
-                puzzleUploadedInGame = true;
+            // Set the puzzleUploadedInGame to true
+            puzzleUploadedInGame = true;
 
-                // Set the currentPlayerIndex to the uploader
-                currentPlayerIndex = players.indexOf(clientSocket);
-                movesRemaining = 4; // Reset movesRemaining
+            // Set the currentPlayerIndex to the uploader
+            currentPlayerIndex = players.indexOf(seat);
+            movesRemaining = 4; // Reset movesRemaining
 
-                // Broadcast the updated board to all clients
-                sendGameStateToAll();
+            // Broadcast the updated board to all clients
+            sendGameStateToAll();
 
-                // Get the player's info using playerId
-                String playerId = clientSocketIdMap.get(clientSocket);
-                PlayerInfo playerInfo = playerInfoMap.get(playerId);
+            PlayerInfo playerInfo = seat.info;
 
-                // Notify all players about the new puzzle
-                broadcastMessage("Puzzle updated by " + playerInfo.getName());
+            // Notify all players about the new puzzle
+            broadcastMessage("Puzzle updated by " + playerInfo.getName());
 
-                // Notify all players of the new current player
-                notifyCurrentPlayer();
+            // Notify all players of the new current player
+            notifyCurrentPlayer();
 
-                System.out.println("Puzzle data uploaded by player " + playerInfo.getName());
-            } else {
-                // Send an error message to the client
+            System.out.println("Puzzle data uploaded by player " + playerInfo.getName());
+        } else {
+            // Send an error message to the client
 
-                sendMessageToClient(clientSocket, "Invalid puzzle data uploaded.");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            sendMessageToClient(clientSocket, "Error processing uploaded puzzle data.");
+            sendMessageToClient(seat.socket, "Invalid puzzle data uploaded.");
         }
     }
 
 
     private boolean validateBoardData(int[] boardData) {
-        if (boardData.length != SIZE * SIZE) {
+        if (boardData.length != board.length) {
             return false;
         }
         for (int value : boardData) {
@@ -297,7 +806,8 @@ public class GameRoom {
         score = 0;
         puzzleUploadedInGame = false;
         // Reset player data
-        for (PlayerInfo player : playerInfoMap.values()) {
+        for (Seat seat : players) {
+            PlayerInfo player = seat.info;
             player.setScore(0);
             player.setLevel(1);
             player.setCombo(0);
@@ -306,108 +816,243 @@ public class GameRoom {
     }
 
     private void broadcastMessage(String message) {
-        for (DataOutputStream out : clientOutputMap.values()) {
+        for (Seat seat : audience()) {
             try {
-                out.writeByte('M'); // 'M' indicates message
+                DataOutputStream out = seat.frames.begin('M'); // 'M' indicates message
                 out.writeUTF(message);
-                out.flush();
+                seat.frames.end();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
     // handle move
-    public void moveMerge(String dir, Socket clientSocket) throws SQLException {
-        if (!isPlayerTurn(clientSocket)) {
+    private void moveMerge(String dir, Seat seat) throws SQLException {
+        if (!isPlayerTurn(seat)) {
             // Non-current player's request, ignore
             return;
         }
-        synchronized (board) {
-            if (actionMap.containsKey(dir)) {
+        if (gameOver) {
+            // the final board stays as it is; this also keeps every tile within 4 bits
+            return;
+        }
+        Integer direction = actionMap.get(dir);
+        if (direction != null) {
+            journaled.move(seat.index, direction);
+            recordMove(seat.index, direction);
+            applyMove(direction);
+
+            movesRemaining--;
+            if (movesRemaining == 0) {
+                // reset move
+                movesRemaining = 4;
+                // exchange to next player
+                currentPlayerIndex = (currentPlayerIndex + 1) % players.size();
+                notifyCurrentPlayer();
+            }
 
-                combo = numOfTilesMoved = 0;
+            updatePlayerDataAndBroadcast(seat);
+            // Check if game is over
+            if (gameOver) {
+                checkGameOver();
+            }
+        }
+    }
 
-                // Execute move logic
-                actionMap.get(dir).run();
+    // Execute move logic, GameRules also spawns the next tile and decides on game over
+    private void applyMove(int direction) {
+        GameRules.move(board, size, direction, level, random, moveResult);
+        score += moveResult.scoreDelta;
+        combo = moveResult.combo;
+        level = moveResult.level;
+        numOfTilesMoved = moveResult.tilesMoved;
+        if (numOfTilesMoved > 0) {
+            totalMoveCount++;
+        }
+        gameOver = moveResult.gameOver;
+    }
 
-                // Calculate new score
-                 score += combo / 5 * 2;
+    private void applyPuzzle(int[] newBoard) {
+        System.arraycopy(newBoard, 0, board, 0, board.length);
+        resetGameState();
+    }
 
-                // Check if game is over
-                if (numOfTilesMoved > 0) {
-                    totalMoveCount++;
-                    gameOver = level == LIMIT || !nextRound();
-                } else
-                    gameOver = isFull();
+    private boolean isPlayerTurn(Seat seat) {
+        return players.get(currentPlayerIndex) == seat;
+    }
 
-                movesRemaining--;
-                if (movesRemaining == 0) {
-                    // reset move
-                    movesRemaining = 4;
-                    // exchange to next player
-                    currentPlayerIndex = (currentPlayerIndex + 1) % players.size();
-                    notifyCurrentPlayer();
-                }
+    // send the game state to all player
+    // the board and 'P' frames are encoded once per state change and protocol version,
+    // and the same bytes go to every player of that version
+    private void sendGameStateToAll() {
+        sendGameStateToAll(false);
+    }
 
-                updatePlayerDataAndBroadcast(clientSocket);
-                // Check if game is over
-                if (gameOver) {
-                    checkGameOver();
+    // snapshot sends the whole board as 'A', otherwise only the changed cells go out as 'D'.
+    // A player whose last state is still queued gets the whole board instead, replacing the queued state.
+    private void sendGameStateToAll(boolean snapshot) {
+        // the board payload changes the sequence number, so it is always encoded, and exactly once
+        char boardType = snapshot ? 'A' : 'D';
+        byte[] boardPayload;
+        if (snapshot) {
+            boardSeq++;
+            System.arraycopy(board, 0, previousBoardState, 0, board.length);
+            boardPayload = encodeArray();
+        } else {
+            boardPayload = encodeBoardDelta();
+        }
+        // the frames for each protocol version, encoded when the first player of that version needs them
+        byte[][] stateFrames = new byte[Protocol.VERSION + 1][];
+        byte[][] snapshotFrames = snapshot ? stateFrames : new byte[Protocol.VERSION + 1][];
+        byte[] snapshotPayload = snapshot ? boardPayload : null;
+        for (Seat seat : audience()) {
+            if (!seat.isConnected()) continue;
+            byte[] frames;
+            if (seat.version != Protocol.LEGACY && !snapshot && seat.outbox.hasPendingState()) {
+                // a delta can not replace the queued state, the whole board can
+                frames = snapshotFrames[seat.version];
+                if (frames == null) {
+                    if (snapshotPayload == null) snapshotPayload = encodeArray();
+                    frames = snapshotFrames[seat.version] = encodeGameState(seat, 'A', snapshotPayload);
+                }
+            } else {
+                frames = stateFrames[seat.version];
+                if (frames == null) {
+                    frames = stateFrames[seat.version] = encodeGameState(seat, boardType, boardPayload);
                 }
             }
+            seat.outbox.offerState(frames);
         }
     }
 
-    private boolean isPlayerTurn(Socket clientSocket) {
-        return players.get(currentPlayerIndex).equals(clientSocket);
+    private byte[] encodeGameState(Seat seat, char boardType, byte[] boardPayload) {
+        return encode(seat.frames.isFramed(), frames -> {
+            if (seat.version == Protocol.LEGACY) {
+                // legacy clients only understand full int boards
+                sendLegacyArray(frames);
+            } else if (boardPayload != null) {
+                frames.write(boardType, boardPayload);
+            }
+            sendPlayersInfo(frames, seat.usesSeatIndices());
+        });
     }
 
-    // send the game state to all player
-    private void sendGameStateToAll() {
-        for (Socket s : players) {
-            DataOutputStream outClient = clientOutputMap.get(s);
-            try {
-                sendArray(outClient);
-                sendPlayersInfo(outClient);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private interface FrameEncoder {
+        void encode(FrameWriter frames) throws IOException;
+    }
+
+    private static byte[] encode(boolean framed, FrameEncoder encoder) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        try {
+            encoder.encode(new FrameWriter(new DataOutputStream(buffer), framed));
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private interface PayloadEncoder {
+        void encode(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encodePayload(PayloadEncoder encoder) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(32);
+        try {
+            encoder.encode(new DataOutputStream(buffer));
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new UncheckedIOException(e);
         }
+        return buffer.toByteArray();
     }
 
-    // send  board
-    void sendArray(DataOutputStream outClient) throws IOException {
-        outClient.writeByte('A');
+    // 'A' payload: board packed 4 bits per cell, tagged with the sequence number of the broadcast it belongs to
+    private byte[] encodeArray() {
+        return encodePayload(out -> {
+            out.writeInt(boardSeq);
+            Protocol.writeBoard(out, board);
+        });
+    }
+
+    // send  board the way legacy clients read it
+    void sendLegacyArray(FrameWriter frames) throws IOException {
+        DataOutputStream outClient = frames.begin('A');
         outClient.writeInt(board.length);
         for (int v : board) {
             outClient.writeInt(v);
         }
-        outClient.flush();
+        frames.end();
+    }
+
+    // 'D' payload: only the cells that changed since the last broadcast, one byte per cell: index << 4 | value,
+    // or on boards larger than 4x4 an index byte and a value byte; null when nothing changed
+    private byte[] encodeBoardDelta() {
+        int changed = 0;
+        for (int i = 0; i < board.length; i++) {
+            if (board[i] != previousBoardState[i]) changed++;
+        }
+        if (changed == 0) return null;
+        boardSeq++;
+        int count = changed;
+        return encodePayload(out -> {
+            out.writeInt(boardSeq);
+            out.writeByte(count);
+            for (int i = 0; i < board.length; i++) {
+                if (board[i] != previousBoardState[i]) {
+                    if (size == SIZE) {
+                        out.writeByte(i << Protocol.CELL_BITS | board[i]);
+                    } else {
+                        out.writeByte(i);
+                        out.writeByte(board[i]);
+                    }
+                    previousBoardState[i] = board[i];
+                }
+            }
+        });
+    }
+
+    private void sendBoardSnapshot(Seat seat) {
+        if (state != State.WAITING && seat.version != Protocol.LEGACY) {
+            try {
+                seat.frames.write('A', encodeArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     // send player Info
-    private void sendPlayersInfo(DataOutputStream out) throws IOException {
-        out.writeByte('P');
-        synchronized (playerInfoMap) {
-            out.writeInt(playerInfoMap.size());
-            for (PlayerInfo playerInfo : playerInfoMap.values()) {
+    // with seat indices a player is one byte, the client knows the names from 'L'
+    private void sendPlayersInfo(FrameWriter frames, boolean seatIndices) throws IOException {
+        DataOutputStream out = frames.begin('P');
+        if (seatIndices) {
+            out.writeByte(players.size());
+        } else {
+            out.writeInt(players.size());
+        }
+        for (Seat seat : players) {
+            PlayerInfo playerInfo = seat.info;
+            if (seatIndices) {
+                out.writeByte(seat.index);
+            } else {
                 out.writeUTF(playerInfo.getPlayerId());
                 out.writeUTF(playerInfo.getName());
-                out.writeInt(playerInfo.getScore());
-                out.writeInt(playerInfo.getLevel());
-                out.writeInt(playerInfo.getCombo());
-                out.writeInt(playerInfo.getMoves());
             }
+            out.writeInt(playerInfo.getScore());
+            out.writeInt(playerInfo.getLevel());
+            out.writeInt(playerInfo.getCombo());
+            out.writeInt(playerInfo.getMoves());
         }
-        out.flush();
+        frames.end();
     }
     private void sendMessageToClient(Socket clientSocket, String message) {
-        DataOutputStream out = clientOutputMap.get(clientSocket);
-        if (out != null) {
+        Seat seat = seatOf(clientSocket);
+        if (seat != null) {
             try {
-                out.writeByte('M'); // 'M' indicates a message
+                DataOutputStream out = seat.frames.begin('M'); // 'M' indicates a message
                 out.writeUTF(message);
-                out.flush();
+                seat.frames.end();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -415,168 +1060,379 @@ public class GameRoom {
     }
 
     // game over
-    public synchronized void checkGameOver() throws SQLException {
+    private void checkGameOver() throws SQLException {
         if (gameOver) {
             System.out.println("Game over. Sending scores to clients.");
-            PlayerInfo winner = getWinner();
+            Seat winner = getWinner();
 
-            // save the winner score to the database
-            try {
-
-                Database.putScore(winner.getName(), winner.getScore(), winner.getLevel());
-            } catch (Exception ex) {
-                ex.printStackTrace();
+            // save the winner score to the database, the high scores are for people, not bots
+            if (!winner.isBot()) {
+                try {
+                    Database.putScore(winner.info.getName(), winner.info.getScore(), winner.info.getLevel());
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
             }
 
 
             sendGameOverScores();
+            state = State.FINISHED;
+            // a finished game is not recovered
+            store.delete(id);
+            // leave the players time to look at the scores, then release the room
+            timer.schedule(this::close, FINISHED_LINGER_MILLIS, TimeUnit.MILLISECONDS);
         }
     }
 
-    private PlayerInfo getWinner() {
-        PlayerInfo winner = null;
+    private Seat getWinner() {
+        Seat winner = null;
         int highestScore = -1;
-        for (PlayerInfo player : playerInfoMap.values()) {
+        for (Seat seat : players) {
+            PlayerInfo player = seat.info;
             if (player.getScore() > highestScore) {
                 highestScore = player.getScore();
-                winner = player;
+                winner = seat;
             }
         }
         return winner;
     }
 
     private void sendGameOverScores() {
-        for (Socket s : players) {
-            DataOutputStream out = clientOutputMap.get(s);
-            try {
-                out.writeByte('S'); // 'S' indicates game over scores
-                // Convert the playerInfoMap values to a list
-                List<PlayerInfo> playerList = new ArrayList<>(playerInfoMap.values());
+        for (Seat seat : audience()) {
+            sendGameOverScores(seat);
+        }
+    }
 
-                // Sort the list in descending order by score
-                playerList.sort((p1, p2) -> Integer.compare(p2.getScore(), p1.getScore()));
+    private void sendGameOverScores(Seat seat) {
+        try {
+            DataOutputStream out = seat.frames.begin('S'); // 'S' indicates game over scores
+            List<PlayerInfo> playerList = new ArrayList<>();
+            for (Seat player : players) {
+                playerList.add(player.info);
+            }
 
-                // Send the size of the list
-                out.writeInt(playerList.size());
+            // Sort the list in descending order by score
+            playerList.sort((p1, p2) -> Integer.compare(p2.getScore(), p1.getScore()));
 
-                // Iterate over the sorted list and send player data
-                for (PlayerInfo player : playerList) {
-                    out.writeUTF(player.getName());
-                    out.writeInt(player.getScore());
-                    out.writeInt(player.getLevel());
-                }
-                out.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+            // Send the size of the list
+            out.writeInt(playerList.size());
+
+            // Iterate over the sorted list and send player data
+            for (PlayerInfo player : playerList) {
+                out.writeUTF(player.getName());
+                out.writeInt(player.getScore());
+                out.writeInt(player.getLevel());
             }
+            seat.frames.end();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    // game logic
-    private void moveDown() {
-        for (int i = 0; i < SIZE; i++)
-            moveMerge(SIZE, SIZE * (SIZE - 1) + i, i);
+    public int getScore() {
+        return score;
     }
 
-    private void moveUp() {
-        for (int i = 0; i < SIZE; i++)
-            moveMerge(-SIZE, i, SIZE * (SIZE - 1) + i);
+    public int getCombo() {
+        return combo;
     }
 
-    private void moveRight() {
-        for (int i = 0; i <= SIZE * (SIZE - 1); i += SIZE)
-            moveMerge(1, SIZE - 1 + i, i);
+    public int getLevel() {
+        return level;
     }
 
-    private void moveLeft() {
-        for (int i = 0; i <= SIZE * (SIZE - 1); i += SIZE)
-            moveMerge(-1, i, SIZE - 1 + i);
+    public int getMoveCount() {
+        return totalMoveCount;
     }
 
-    private void moveMerge(int d, int s, int l) {
-        int v, j;
-        for (int i = s - d; i != l - d; i -= d) {
-            j = i;
-            if (board[j] <= 0) continue;
-            v = board[j];
-            board[j] = 0;
-            while (j + d != s && board[j + d] == 0)
-                j += d;
 
-            if (board[j + d] == 0) {
-                j += d;
-                board[j] = v;
-            } else {
-                while (j != s && board[j + d] == v) {
-                    j += d;
-                    board[j] = 0;
-                    v++;
-                    score++;
-                    combo++;
-                }
-                board[j] = v;
-                if (v > level) level = v;
+    // release the room: no more joins, connections closed, out of the matchmaker's registry
+    private void onClose() {
+        if (state == State.CLOSED) return;
+        if (journaled != null) {
+            journaled.end(gameOver);
+        }
+        if (state == State.PLAYING) {
+            store.delete(id);
+        }
+        state = State.CLOSED;
+        closeSeats();
+        List<Seat> connected = new ArrayList<>(players);
+        connected.addAll(spectators);
+        for (Seat seat : connected) {
+            try {
+                if (seat.socket != null && !seat.socket.isClosed()) seat.socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            if (i != j)
-                numOfTilesMoved++;
+        }
+        // the connections may still hold on to the room until they notice, keep nothing else alive
+        players.clear();
+        spectators.clear();
+        feed = null;
+        feedSeat = null;
+        Arrays.fill(seats, null);
+        actionMap.clear();
+        matchmaker.closed(this);
+        System.out.println("Room closed. Live rooms: " + matchmaker.liveRoomCount()
+                + ", closed rooms: " + matchmaker.closedRoomCount());
+    }
 
+    // bot rooms are load tests, their games are not worth keeping
+    private boolean isCheckpointed() {
+        return store.isEnabled() && !botRoom;
+    }
 
+    // the inputs since the last checkpoint, in the store's log format
+    private void recordMove(int seatIndex, int direction) {
+        if (!isCheckpointed()) return;
+        try {
+            newInputsOut.writeByte(direction);
+            newInputsOut.writeByte(seatIndex);
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new UncheckedIOException(e);
         }
+        inputCount++;
+        changed = true;
     }
 
-    private boolean nextRound() {
-        if (isFull()) return false;
-        int i;
-        do {
-            i = random.nextInt(SIZE * SIZE);
-        } while (board[i] > 0);
+    private void recordPuzzle(int seatIndex, int[] newBoard) {
+        if (!isCheckpointed()) return;
+        try {
+            newInputsOut.writeByte(GameJournal.PUZZLE);
+            newInputsOut.writeByte(seatIndex);
+            Protocol.writeBoard(newInputsOut, newBoard);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        inputCount++;
+        changed = true;
+    }
 
+    // only a game in play is worth recovering; the files are written on the store's thread
+    private void onCheckpoint() {
+        if (state != State.PLAYING || !changed || !isCheckpointed()) return;
+        changed = false;
+        byte[] inputs = newInputs.toByteArray();
+        newInputs.reset();
+        inputBytes += inputs.length;
+        RoomStore.Snapshot snapshot = new RoomStore.Snapshot();
+        snapshot.roomId = id;
+        snapshot.seed = seed;
+        snapshot.size = size;
+        snapshot.inputs = inputCount;
+        snapshot.inputBytes = inputBytes;
+        snapshot.currentPlayerIndex = currentPlayerIndex;
+        snapshot.movesRemaining = movesRemaining;
+        snapshot.puzzleUploaded = puzzleUploadedInGame;
+        snapshot.boardSeq = boardSeq;
+        for (Seat seat : players) {
+            RoomStore.Player player = new RoomStore.Player();
+            player.seat = seat.index;
+            player.bot = seat.isBot();
+            player.name = seat.info.getName();
+            player.playerId = seat.info.getPlayerId();
+            player.score = seat.info.getScore();
+            player.level = seat.info.getLevel();
+            player.combo = seat.info.getCombo();
+            player.moves = seat.info.getMoves();
+            snapshot.players.add(player);
+        }
+        snapshot.board = board.clone();
+        store.save(snapshot, inputs);
+    }
 
-        board[i] = random.nextInt(level) / 4 + 1;
-        return true;
+    // replay the checkpointed inputs from the seed, which gives the board, the scores and the generator
+    // as they were, then seat the players: bots play on, people get their seat back when they reconnect
+    private void onRestore(RoomStore.Snapshot snapshot) {
+        state = State.PLAYING;
+        closeSeats();
+        if (snapshot.size != size) {
+            size = snapshot.size;
+            board = new int[size * size];
+            previousBoardState = new int[size * size];
+            GameRules.spawn(board, level, random);
+        }
+        String[] names = new String[MAX_PLAYERS];
+        for (RoomStore.Player player : snapshot.players) {
+            if (player.seat < MAX_PLAYERS) names[player.seat] = player.name;
+        }
+        journaled = journal.startGame(seed, size, names);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot.log));
+        try {
+            for (int i = 0; i < snapshot.inputs; i++) {
+                int kind = in.readUnsignedByte();
+                int seatIndex = in.readUnsignedByte();
+                if (kind == GameJournal.PUZZLE) {
+                    int[] puzzle = new int[board.length];
+                    Protocol.readBoard(in, puzzle);
+                    journaled.puzzle(seatIndex, puzzle);
+                    applyPuzzle(puzzle);
+                } else if (kind <= Bitboard.DOWN) {
+                    journaled.move(seatIndex, kind);
+                    applyMove(kind);
+                } else {
+                    throw new IOException("Unknown input " + kind);
+                }
+            }
+            if (!Arrays.equals(board, snapshot.board)) {
+                throw new IOException("the replayed board is not the checkpointed one");
+            }
+            for (RoomStore.Player player : snapshot.players) {
+                if (player.seat >= MAX_PLAYERS || seats[player.seat] != null) {
+                    throw new IOException("Invalid seat " + player.seat);
+                }
+                PlayerInfo info = new PlayerInfo(player.name, player.playerId);
+                info.setScore(player.score);
+                info.setLevel(player.level);
+                info.setCombo(player.combo);
+                info.setMoves(player.moves);
+                Seat seat = new Seat(player.seat, info, player.bot ? new Bot() : null);
+                seats[seat.index] = seat;
+                players.add(seat);
+            }
+        } catch (IOException e) {
+            System.out.println("Room " + Long.toHexString(id) + " can not be recovered: " + e.getMessage());
+            onClose();
+            return;
+        }
+        currentPlayerIndex = snapshot.currentPlayerIndex;
+        movesRemaining = snapshot.movesRemaining;
+        puzzleUploadedInGame = snapshot.puzzleUploaded;
+        boardSeq = snapshot.boardSeq;
+        System.arraycopy(board, 0, previousBoardState, 0, board.length);
+        inputCount = snapshot.inputs;
+        inputBytes = snapshot.inputBytes;
+        System.out.println("Recovered room " + Long.toHexString(id) + " after " + inputCount + " moves, "
+                + players.size() + " players.");
+        timer.schedule(() -> post(this::dropAbsentPlayers), REJOIN_MILLIS, TimeUnit.MILLISECONDS);
+        notifyCurrentPlayer();
     }
 
-    boolean isFull() {
-        for (int v : board)
-            if (v == 0) return false;
-        return true;
+    // the player of a recovered room is back: the seat gets the new connection and the whole game again
+    private boolean onRejoin(Socket clientSocket, PlayerInfo playerInfo, Outbox out, int version) {
+        if (state != State.PLAYING) {
+            return false;
+        }
+        for (int i = 0; i < players.size(); i++) {
+            Seat away = players.get(i);
+            if (away.isBot() || away.isConnected() || !away.info.getPlayerId().equals(playerInfo.getPlayerId())) {
+                continue;
+            }
+            Seat seat = new Seat(away.index, clientSocket, away.info, out, version);
+            players.set(i, seat);
+            seats[seat.index] = seat;
+            matchmaker.forgetAbsent(seat.info.getPlayerId());
+            System.out.println(seat.info.getName() + " rejoined the room.");
+            changed = true;
+            sendFirstPlayer(seat);
+            sendPlayerListToAll();
+            sendGameStart(seat);
+            sendGameStateToAll(true);
+            notifyCurrentPlayer();
+            return true;
+        }
+        return false;
     }
 
-    public int getScore() {
-        return score;
+    // whoever has not reconnected by now leaves, like a lost connection
+    private void dropAbsentPlayers() {
+        for (Seat seat : new ArrayList<>(players)) {
+            if (!seat.isBot() && !seat.isConnected()) {
+                System.out.println(seat.info.getName() + " did not reconnect and left the room.");
+                matchmaker.forgetAbsent(seat.info.getPlayerId());
+                leave(seat);
+            }
+        }
+        sendPlayerListToAll();
     }
 
-    public int getCombo() {
-        return combo;
+    // the spectator gets 'W' with the room's id and the game so far, then reads on from the feed
+    private boolean onWatch(Socket clientSocket, Outbox out, int version) {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        if (feed == null) {
+            feed = new SpectatorFeed();
+            feedSeat = new Seat(-1, null, null, feed.source(), Protocol.VERSION);
+        }
+        Seat spectator = new Seat(-1, clientSocket, null, out, version);
+        spectators.add(spectator);
+        try {
+            spectator.frames.begin('W').writeLong(id); // 'W' indicates watching, with the room's id
+            spectator.frames.end();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        sendGame(spectator);
+        System.out.println("A spectator is watching room " + Long.toHexString(id) + ", " + spectators.size() + " watching.");
+        return true;
     }
 
-    public int getLevel() {
-        return level;
+    // everything a spectator needs to show the room as it is now, queued before anything the feed has next
+    private void sendGame(Seat spectator) {
+        sendPlayerList(spectator);
+        if (state != State.WAITING && !players.isEmpty()) {
+            sendGameStart(spectator);
+            spectator.outbox.offerState(encodeGameState(spectator, 'A', encodeArray()));
+            sendCurrentPlayer(spectator, players.get(currentPlayerIndex));
+            if (state == State.FINISHED) {
+                sendGameOverScores(spectator);
+            }
+        }
+        feed.follow(spectator.outbox, () -> post(() -> onLapped(spectator)));
     }
 
-    public int getMoveCount() {
-        return totalMoveCount;
+    // the board and whose turn it is, then the feed from its head: the frames the spectator has not
+    // read yet are older than the snapshot and would only be out of sync again
+    private void resyncSpectator(Seat spectator) {
+        if (state != State.WAITING && !players.isEmpty()) {
+            spectator.outbox.offerState(encodeGameState(spectator, 'A', encodeArray()));
+            sendCurrentPlayer(spectator, players.get(currentPlayerIndex));
+            feed.follow(spectator.outbox, () -> post(() -> onLapped(spectator)));
+        }
     }
 
+    // the spectator fell a whole feed behind, it gets the game again and reads on from there
+    private void onLapped(Seat spectator) {
+        if (spectators.contains(spectator)) {
+            sendGame(spectator);
+        }
+    }
 
-    public void close() {
-        for (Socket s : players) {
-            try {
-                DataOutputStream out = clientOutputMap.get(s);
-                if (out != null) out.close();
-                if (!s.isClosed()) s.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    private Seat spectatorOf(Socket clientSocket) {
+        for (Seat spectator : spectators) {
+            if (spectator.socket == clientSocket) {
+                return spectator;
             }
         }
+        return null;
     }
 
-    public void removePlayer(Socket clientSocket) {
-        String playerId = clientSocketIdMap.get(clientSocket);
-        players.remove(clientSocket);
-        clientOutputMap.remove(clientSocket);
-        playerInfoMap.remove(playerId);
-        clientSocketIdMap.remove(clientSocket);
+    private boolean removeSpectator(Socket clientSocket) {
+        Seat spectator = spectatorOf(clientSocket);
+        if (spectator == null) {
+            return false;
+        }
+        spectators.remove(spectator);
+        feed.unfollow(spectator.outbox);
+        if (spectators.isEmpty()) {
+            // nobody watches, stop encoding for the feed
+            feed = null;
+            feedSeat = null;
+        }
+        return true;
+    }
+
+    private void onLeave(Socket clientSocket) {
+        if (removeSpectator(clientSocket)) {
+            return;
+        }
+        Seat seat = seatOf(clientSocket);
+        if (seat != null) {
+            leave(seat);
+        }
         sendPlayerListToAll();
     }
 }
@@ -0,0 +1,238 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Plays games headless with GameRules, the rules GameRoom plays by, to see what LIMIT, the
+ * spawn formula and the combo scoring do to score, level and game length.
+ * Change the rules in GameRules and run again.
+ * usage: GameSimulator [games] [random|greedy|corner|expectimax[:depth]] [seed]
+ *
+ * Games run in parallel on the common ForkJoinPool, in chunks of CHUNK games. Game g plays
+ * with a generator seeded from the seed and g alone, so a run gives the same numbers
+ * however many cores it gets.
+ *
+ * Measured on a 1 core Linux box, JDK 17, seed 42, with the rules as they are:
+ *   strategy        games     games/s   mean score   p50 score   mean moves   top level
+ *   random        100,000      59,394         96.6          94        110.1           9
+ *   corner        100,000      49,248        191.9         186        203.9          10
+ *   greedy        100,000      30,817        219.9         215        233.2          10
+ *   expectimax:2    2,000         266        430.4         414        442.3          11
+ */
+public class GameSimulator {
+    private static final int CHUNK = 1000;
+    // a strategy that never ends a game stops here
+    private static final int MAX_MOVES = 1_000_000;
+
+    /** Picks the next move of a single player game. */
+    public interface Strategy {
+        // a Bitboard direction that changes the packed 4x4 board, or -1 when none does
+        int move(long board, int level, SplittableRandom random);
+    }
+
+    // any move that changes the board
+    static final class RandomStrategy implements Strategy {
+        private final Bitboard.Result result = new Bitboard.Result();
+        private final int[] moves = new int[4];
+
+        @Override
+        public int move(long board, int level, SplittableRandom random) {
+            int n = 0;
+            for (int d = Bitboard.LEFT; d <= Bitboard.DOWN; d++) {
+                Bitboard.move(board, d, result);
+                if (result.tilesMoved > 0) moves[n++] = d;
+            }
+            return n == 0 ? -1 : moves[random.nextInt(n)];
+        }
+    }
+
+    // the server's bots
+    static final class GreedyStrategy implements Strategy {
+        private final Bot bot = new Bot();
+
+        @Override
+        public int move(long board, int level, SplittableRandom random) {
+            return bot.chooseDirection(board);
+        }
+    }
+
+    // always down, else left, else right, else up: the big tiles stay in the bottom left corner
+    static final class CornerStrategy implements Strategy {
+        private static final int[] ORDER = {Bitboard.DOWN, Bitboard.LEFT, Bitboard.RIGHT, Bitboard.UP};
+        private final Bitboard.Result result = new Bitboard.Result();
+
+        @Override
+        public int move(long board, int level, SplittableRandom random) {
+            for (int d : ORDER) {
+                Bitboard.move(board, d, result);
+                if (result.tilesMoved > 0) return d;
+            }
+            return -1;
+        }
+    }
+
+    // the hint search to a fixed depth, with a cache of its own so the games replay exactly
+    static final class ExpectimaxStrategy implements Strategy {
+        private final HintEngine engine;
+        private final int depth;
+
+        ExpectimaxStrategy(HintEngine engine, int depth) {
+            this.engine = engine;
+            this.depth = depth;
+        }
+
+        @Override
+        public int move(long board, int level, SplittableRandom random) {
+            return engine.searchToDepth(board, level, depth).direction;
+        }
+    }
+
+    /** Score, level and length of a number of games. */
+    static final class Stats {
+        final Histogram scores = new Histogram();
+        final Histogram levels = new Histogram();
+        final Histogram moves = new Histogram();
+
+        void add(int score, int level, int moveCount) {
+            scores.add(score);
+            levels.add(level);
+            moves.add(moveCount);
+        }
+
+        Stats merge(Stats other) {
+            scores.merge(other.scores);
+            levels.merge(other.levels);
+            moves.merge(other.moves);
+            return this;
+        }
+    }
+
+    // counts by value, exact for the percentiles however many games are played
+    static final class Histogram {
+        private long[] counts = new long[64];
+        private long total;
+        private long sum;
+
+        void add(int value) {
+            if (value >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(value + 1, counts.length * 2));
+            }
+            counts[value]++;
+            total++;
+            sum += value;
+        }
+
+        void merge(Histogram other) {
+            if (other.counts.length > counts.length) {
+                counts = Arrays.copyOf(counts, other.counts.length);
+            }
+            for (int v = 0; v < other.counts.length; v++) {
+                counts[v] += other.counts[v];
+            }
+            total += other.total;
+            sum += other.sum;
+        }
+
+        // the smallest value at least the given fraction of the games reached
+        int percentile(double fraction) {
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int v = 0; v < counts.length; v++) {
+                seen += counts[v];
+                if (seen >= rank) return v;
+            }
+            return counts.length - 1;
+        }
+
+        String summary() {
+            return String.format("mean %8.1f   min %6d   p10 %6d   p50 %6d   p90 %6d   p99 %6d   max %6d",
+                    (double) sum / total, percentile(0), percentile(0.10), percentile(0.50),
+                    percentile(0.90), percentile(0.99), percentile(1));
+        }
+    }
+
+    public static void main(String[] args) {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        String name = args.length > 1 ? args[1] : "greedy";
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        Supplier<Strategy> strategy = strategy(name);
+
+        long start = System.nanoTime();
+        Stats stats = simulate(games, seed, strategy);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%,d games, strategy %s, seed %d, %d threads: %.1f s, %,.0f games/s%n", games, name, seed,
+                ForkJoinPool.getCommonPoolParallelism(), seconds, games / seconds);
+        System.out.println("score   " + stats.scores.summary());
+        System.out.println("moves   " + stats.moves.summary());
+        System.out.println("level   " + stats.levels.summary());
+        for (int level = 1; level <= GameRules.LIMIT; level++) {
+            long count = level < stats.levels.counts.length ? stats.levels.counts[level] : 0;
+            System.out.printf("  level %2d  %,12d  %6.2f%%%n", level, count, 100.0 * count / games);
+        }
+    }
+
+    static Supplier<Strategy> strategy(String name) {
+        String[] parts = name.split(":");
+        switch (parts[0]) {
+            case "random":
+                return RandomStrategy::new;
+            case "greedy":
+                return GreedyStrategy::new;
+            case "corner":
+                return CornerStrategy::new;
+            case "expectimax": {
+                int depth = parts.length > 1 ? Integer.parseInt(parts[1]) : 2;
+                return () -> new ExpectimaxStrategy(new HintEngine(ForkJoinPool.commonPool()), depth);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown strategy: " + name);
+        }
+    }
+
+    // games 0 to games - 1, a strategy per chunk since strategies keep scratch state
+    static Stats simulate(int games, long seed, Supplier<Strategy> strategy) {
+        int chunks = (games + CHUNK - 1) / CHUNK;
+        return IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> {
+                    Stats stats = new Stats();
+                    Strategy player = strategy.get();
+                    GameRules.Result result = new GameRules.Result();
+                    for (int game = chunk * CHUNK; game < Math.min(games, (chunk + 1) * CHUNK); game++) {
+                        play(new SplittableRandom(gameSeed(seed, game)), player, result, stats);
+                    }
+                    return stats;
+                })
+                .reduce(Stats::merge)
+                .orElseGet(Stats::new);
+    }
+
+    // one game as a room plays it: the first tile is spawned at level 1, then move until game over
+    static void play(SplittableRandom random, Strategy player, GameRules.Result result, Stats stats) {
+        int level = 1;
+        int score = 0;
+        int moves = 0;
+        long board = GameRules.spawn(0L, level, random);
+        while (moves < MAX_MOVES) {
+            int direction = player.move(board, level, random);
+            // on a full board that no move changes, whatever the player tries ends the game
+            GameRules.move(board, direction < 0 ? Bitboard.LEFT : direction, level, random, result);
+            board = result.board;
+            score += result.scoreDelta;
+            level = result.level;
+            if (result.tilesMoved > 0) moves++;
+            if (result.gameOver) break;
+        }
+        stats.add(score, level, moves);
+    }
+
+    // the generator of one game depends on the seed and the game number only
+    private static long gameSeed(long seed, long game) {
+        long z = seed + game * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -11,6 +11,7 @@ import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
+import javafx.scene.input.KeyCode;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
@@ -97,6 +98,9 @@ public class GameWindow {
     @FXML
     Label turnIndicatorLabel; // 新增的回合指示器
 
+    @FXML
+    Label hintLabel;
+
     Stage stage;
     AnimationTimer animationTimer;
 
@@ -148,12 +152,18 @@ public class GameWindow {
                     // Get the current puzzle data from the GameEngine
                     int[] boardData = gameEngine.getBoardData();
 
-                    // Save the board data to the file in binary format
+                    // Save a 4x4 board as one packed long, a larger board as its length and that many ints
                     try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
-                        out.writeInt(boardData.length);
-                        for (int value : boardData) {
-                            out.writeInt(value);
+                        if (boardData.length == GameEngine.SIZE * GameEngine.SIZE) {
+                            out.writeLong(Protocol.packBoard(boardData));
+                        } else {
+                            out.writeInt(boardData.length);
+                            for (int value : boardData) {
+                                out.writeInt(value);
+                            }
                         }
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(e.getMessage(), e);
                     }
 
                     showMessage("Puzzle saved successfully.");
@@ -180,11 +190,17 @@ public class GameWindow {
                     // Read the puzzle data from the file
                     int[] boardData;
                     try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
-                        int length = in.readInt();
-                        boardData = new int[length];
-                        System.out.println(boardData.length);
-                        for (int i = 0; i < length; i++) {
-                            boardData[i] = in.readInt();
+                        if (file.length() == Long.BYTES) {
+                            boardData = new int[GameEngine.SIZE * GameEngine.SIZE];
+                            Protocol.unpackBoard(in.readLong(), boardData);
+                        } else {
+                            // older puzzle files, and those of larger boards, hold a length and that many ints
+                            int length = in.readInt();
+                            boardData = new int[length];
+                            System.out.println(boardData.length);
+                            for (int i = 0; i < length; i++) {
+                                boardData[i] = in.readInt();
+                            }
                         }
                     }
                     System.out.println(boardData);
@@ -192,6 +208,11 @@ public class GameWindow {
                         showMessage("Puzzle upload has already been used in this game.");
                         return;
                     }
+                    int size = gameEngine.getSize();
+                    if (boardData.length != size * size) {
+                        showMessage("This puzzle is not for a " + size + "x" + size + " board.");
+                        return;
+                    }
                     // Send the puzzle data to the server
                     gameEngine.sendPuzzleDataToServer(boardData);
 
@@ -221,7 +242,7 @@ public class GameWindow {
 
     public void updateOtherPlayersData(List<PlayerInfo> players) {
         Platform.runLater(() -> {
-            String localPlayerId = gameEngine.getPlayerId();
+            int localSeat = gameEngine.getSeat();
 
             // hide other player VBOX
             player1Box.setVisible(false);
@@ -230,7 +251,7 @@ public class GameWindow {
 
             int index = 0;
             for (PlayerInfo player : players) {
-                if (player.getPlayerId().equals(localPlayerId)) {
+                if (player.getSeat() == localSeat) {
                     // update local player info
                     scoreLabel.setText("Score: " + player.getScore());
                     levelLabel.setText("Level: " + player.getLevel());
@@ -278,7 +299,11 @@ public class GameWindow {
     private void initCanvas() {
         canvas.setOnKeyPressed(event -> {
             try {
-                gameEngine.moveMerge(event.getCode().toString());
+                if (event.getCode() == KeyCode.H) {
+                    gameEngine.requestHint();
+                } else {
+                    gameEngine.moveMerge(event.getCode().toString());
+                }
             } catch (IOException ex) {
                 ex.printStackTrace();
                 System.exit(-1);
@@ -337,8 +362,9 @@ public class GameWindow {
         double w = canvas.getWidth();
         double h = canvas.getHeight();
 
+        int size = gameEngine.getSize();
         double sceneSize = Math.min(w, h);
-        double blockSize = sceneSize / GameEngine.SIZE;
+        double blockSize = sceneSize / size;
         double padding = blockSize * .05;
         double startX = (w - sceneSize) / 2;
         double startY = (h - sceneSize) / 2;
@@ -351,9 +377,9 @@ public class GameWindow {
         int v;
 
         // Draw the background and cards from left to right, and top to bottom.
-        for (int i = 0; i < GameEngine.SIZE; i++) {
+        for (int i = 0; i < size; i++) {
             double x = startX;
-            for (int j = 0; j < GameEngine.SIZE; j++) {
+            for (int j = 0; j < size; j++) {
                 gc.drawImage(images[0], x, y, blockSize, blockSize);  // Draw the background
 
                 v = gameEngine.getValue(i, j);
@@ -391,19 +417,20 @@ public class GameWindow {
         nameLabel.setText(name);
     }
 
-    public void updateCurrentPlayer(String currentPlayerId) {
+    public void updateCurrentPlayer(int currentSeat) {
         Platform.runLater(() -> {
-            String localPlayerId = gameEngine.getPlayerId();
-            if (currentPlayerId.equals(localPlayerId)) {
+            // a hint is for the board of the turn it was asked in
+            hintLabel.setText("Press H for a hint");
+            if (currentSeat == gameEngine.getSeat()) {
                 turnIndicatorLabel.setText("Your Turn");
                 turnIndicatorLabel.setTextFill(Color.RED);
                 canvas.setDisable(false);
                 canvas.requestFocus();
             } else {
-                // Find the current player's name using the playerId
+                // Find the current player's name using the seat
                 String currentPlayerName = "";
                 for (PlayerInfo player : gameEngine.getPlayers()) {
-                    if (player.getPlayerId().equals(currentPlayerId)) {
+                    if (player.getSeat() == currentSeat) {
                         currentPlayerName = player.getName();
                         break;
                     }
@@ -417,6 +444,10 @@ public class GameWindow {
 
 
 
+    public void showHint(String hint) {
+        hintLabel.setText(hint);
+    }
+
     public void showMessage(String message) {
         Platform.runLater(() -> {
             Alert alert = new Alert(Alert.AlertType.INFORMATION);
@@ -17,6 +17,8 @@ public class GetNameDialog {
     @FXML
     Button goButton;
     @FXML
+    Button watchButton;
+    @FXML
     TextField ipField;
 
     @FXML
@@ -25,6 +27,8 @@ public class GetNameDialog {
     int serverPort;
     Stage stage;
     String playername;
+    // watch a game instead of playing
+    boolean watching;
 
     public GetNameDialog() throws IOException {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("getNameUI.fxml"));
@@ -39,6 +43,10 @@ public class GetNameDialog {
         stage.setMinHeight(scene.getHeight());
 
         goButton.setOnMouseClicked(this::OnButtonClick);
+        watchButton.setOnMouseClicked(event -> {
+            watching = true;
+            OnButtonClick(event);
+        });
 
         stage.showAndWait();
     }
@@ -73,4 +81,8 @@ public class GetNameDialog {
     public int getServerPort() {
         return serverPort;
     }
+
+    public boolean isWatching() {
+        return watching;
+    }
 }
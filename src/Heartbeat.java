@@ -0,0 +1,119 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One timer for every connection of the server.
+ * A client that has sent nothing for a while is pinged with 'K' and has to answer with 'K';
+ * one that stays silent for READ_IDLE_MILLIS, or whose queued output has not moved for
+ * WRITE_IDLE_MILLIS, is expired. Expiring closes the connection, and the normal disconnect
+ * path then removes the player from the room, so a client that vanished without closing its
+ * connection no longer holds a thread, a socket or its room's turn.
+ * Clients older than Protocol.HEARTBEAT can not answer pings and are only checked for
+ * reads until their handshake is done.
+ */
+public class Heartbeat {
+    // set with -Djoker.readIdleMillis and -Djoker.writeIdleMillis
+    public static final int READ_IDLE_MILLIS = Integer.getInteger("joker.readIdleMillis", 30_000);
+    public static final int WRITE_IDLE_MILLIS = Integer.getInteger("joker.writeIdleMillis", 30_000);
+    // a silent client is pinged a few times before it runs out of read idle time
+    private static final long PING_AFTER_NANOS = TimeUnit.MILLISECONDS.toNanos(READ_IDLE_MILLIS / 3);
+    private static final long TICK_MILLIS = 1000;
+
+    private static final byte[] PING = encodePing();
+
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer;
+
+    public Heartbeat(ScheduledExecutorService timer) {
+        this.timer = timer;
+    }
+
+    public static final class Session {
+        private final Outbox outbox;
+        private final Runnable expire;
+        private volatile long lastRead = System.nanoTime();
+        private volatile long lastPing;
+        // until the handshake every client has to keep talking, afterwards only those that answer pings
+        private volatile boolean watchReads = true;
+        private volatile boolean answersPings;
+
+        private Session(Outbox outbox, Runnable expire) {
+            this.outbox = outbox;
+            this.expire = expire;
+        }
+
+        // the handshake is done, answersPings if the client speaks Protocol.HEARTBEAT
+        public void greeted(boolean answersPings) {
+            this.answersPings = answersPings;
+            this.watchReads = answersPings;
+            lastRead = System.nanoTime();
+        }
+
+        // any frame from the client
+        public void received() {
+            lastRead = System.nanoTime();
+        }
+    }
+
+    public void start() {
+        timer.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // expire runs on the timer thread and must close the connection
+    public Session register(Outbox outbox, Runnable expire) {
+        Session session = new Session(outbox, expire);
+        sessions.add(session);
+        return session;
+    }
+
+    public void unregister(Session session) {
+        sessions.remove(session);
+    }
+
+    // connections past their handshake or in it, the load a shard reports to its router
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (Session session : sessions) {
+            long readIdle = now - session.lastRead;
+            if (session.watchReads && readIdle > TimeUnit.MILLISECONDS.toNanos(READ_IDLE_MILLIS)) {
+                expire(session, "read idle");
+            } else if (session.outbox.lagMillis() > WRITE_IDLE_MILLIS) {
+                expire(session, "write idle");
+            } else if (session.answersPings && readIdle > PING_AFTER_NANOS && now - session.lastPing > PING_AFTER_NANOS) {
+                session.lastPing = now;
+                session.outbox.offer(PING);
+            }
+        }
+    }
+
+    private void expire(Session session, String reason) {
+        sessions.remove(session);
+        System.out.println("Session expired (" + reason + ")");
+        try {
+            session.expire.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] encodePing() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Protocol.HEADER_LENGTH);
+        try {
+            new FrameWriter(new DataOutputStream(buffer), true).write('K');
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+}
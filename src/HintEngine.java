@@ -0,0 +1,278 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers the 'H' hint command: the best direction for a 4x4 board and the expected value of
+ * every direction, found with a depth-limited expectimax search.
+ * A chance node spawns a tile the way GameRules does, on every empty cell with the same odds and
+ * with every tile value newTile can draw at the level, so the values are expected points: the
+ * score of the moves searched plus EMPTY_CELL_POINTS for every empty cell left at the horizon.
+ *
+ * The search deepens one ply at a time until the time budget is spent and answers with the
+ * deepest search that finished. The four root moves and the chance nodes near the root are
+ * split across a ForkJoinPool shared by all rooms, and chance node values are kept in a
+ * fixed-size cache, so one hint costs at most the budget however busy the server is.
+ */
+public class HintEngine {
+    // set with -Djoker.hint.budgetMillis and -Djoker.hint.cacheEntries (rounded down to a power of two)
+    public static final long BUDGET_MILLIS = Long.getLong("joker.hint.budgetMillis", 50);
+    public static final int CACHE_ENTRIES = Integer.highestOneBit(Integer.getInteger("joker.hint.cacheEntries", 1 << 18));
+    // player moves searched at most
+    public static final int MAX_DEPTH = 8;
+    // a full board ends the game, so room to move counts as much as a merge
+    private static final double EMPTY_CELL_POINTS = 1.0;
+    // spawns less likely than this are not searched further, the board is scored as it is
+    private static final double MIN_PROBABILITY = 1e-4;
+    // chance nodes with at least this many moves below them fork a task per empty cell
+    private static final int FORK_DEPTH = 3;
+
+    private final ForkJoinPool pool;
+    private final Entry[] cache = new Entry[CACHE_ENTRIES];
+
+    /** The answer to one hint request. */
+    public static final class Hint {
+        // a Bitboard direction, -1 when no move changes the board
+        public final int direction;
+        // expected points of each Bitboard direction, NaN for a move that changes nothing
+        public final double[] values;
+        // moves the search looked ahead
+        public final int depth;
+
+        Hint(int direction, double[] values, int depth) {
+            this.direction = direction;
+            this.values = values;
+            this.depth = depth;
+        }
+    }
+
+    // a chance node value; entries are immutable, so racing writers only ever lose an entry
+    private static final class Entry {
+        final long board;
+        final int level;
+        final int depth;
+        final double value;
+
+        Entry(long board, int level, int depth, double value) {
+            this.board = board;
+            this.level = level;
+            this.depth = depth;
+            this.value = value;
+        }
+    }
+
+    public HintEngine() {
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    public HintEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // search on the pool, the budget counts from now so time spent queued is part of it
+    public CompletableFuture<Hint> hint(long board, int level) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BUDGET_MILLIS);
+        return CompletableFuture.supplyAsync(() -> search(board, level, deadline), pool);
+    }
+
+    // a search to a fixed depth on the calling thread, with no time budget and no forks, so with the
+    // same requests in the same order the answers are the same; for simulations
+    public Hint searchToDepth(long board, int level, int depth) {
+        double[] values = new Search(0, false, false).root(board, level, depth);
+        return new Hint(bestDirection(values), values, depth);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private Hint search(long board, int level, long deadline) {
+        Hint best = null;
+        for (int depth = 1; depth <= MAX_DEPTH; depth++) {
+            // the first search always finishes, so there is an answer however late the request started
+            Search search = new Search(deadline, depth > 1, true);
+            double[] values = search.root(board, level, depth);
+            // a search cut short is thrown away
+            if (search.expired) break;
+            best = new Hint(bestDirection(values), values, depth);
+            if (best.direction < 0) break;
+        }
+        return best;
+    }
+
+    private static int bestDirection(double[] values) {
+        int best = -1;
+        for (int d = 0; d < values.length; d++) {
+            if (!Double.isNaN(values[d]) && (best < 0 || values[d] > values[best])) {
+                best = d;
+            }
+        }
+        return best;
+    }
+
+    // one search to a fixed depth; once past the deadline every node answers 0 and the result is dropped
+    private final class Search {
+        private final long deadline;
+        private final boolean timed;
+        private final boolean parallel;
+        private volatile boolean expired;
+
+        Search(long deadline, boolean timed, boolean parallel) {
+            this.deadline = deadline;
+            this.timed = timed;
+            this.parallel = parallel;
+        }
+
+        double[] root(long board, int level, int depth) {
+            if (!parallel) {
+                double[] values = new double[4];
+                for (int d = Bitboard.LEFT; d <= Bitboard.DOWN; d++) {
+                    values[d] = move(board, d, level, depth, 1.0);
+                }
+                return values;
+            }
+            List<MoveTask> moves = new ArrayList<>();
+            for (int d = Bitboard.LEFT; d <= Bitboard.DOWN; d++) {
+                moves.add(new MoveTask(board, d, level, depth, 1.0));
+            }
+            RecursiveTask.invokeAll(moves);
+            double[] values = new double[moves.size()];
+            for (int d = 0; d < values.length; d++) {
+                values[d] = moves.get(d).join();
+            }
+            return values;
+        }
+
+        // best move value, or the board as it is when no move changes it
+        private double max(long board, int level, int depth, double probability) {
+            double best = Double.NaN;
+            for (int d = Bitboard.LEFT; d <= Bitboard.DOWN; d++) {
+                double value = move(board, d, level, depth, probability);
+                if (!(value <= best)) best = value;
+            }
+            return Double.isNaN(best) ? 0 : best;
+        }
+
+        // points of one move and of what follows it, NaN when the move changes nothing
+        private double move(long board, int direction, int level, int depth, double probability) {
+            if (isExpired()) return 0;
+            Bitboard.Result result = new Bitboard.Result();
+            Bitboard.move(board, direction, result);
+            if (result.tilesMoved == 0) return Double.NaN;
+            int nextLevel = Math.max(level, result.topTile);
+            double points = GameRules.scoreDelta(result.merges);
+            if (nextLevel == GameRules.LIMIT) return points;
+            return points + chance(result.board, nextLevel, depth - 1, probability);
+        }
+
+        // expected value over the tile GameRules would spawn next
+        private double chance(long board, int level, int depth, double probability) {
+            int empty = Bitboard.emptyMask(board);
+            if (empty == 0) return 0;
+            if (depth == 0 || probability < MIN_PROBABILITY) {
+                return Integer.bitCount(empty) * EMPTY_CELL_POINTS;
+            }
+            int index = index(board, level, depth);
+            Entry entry = cache[index];
+            if (entry != null && entry.board == board && entry.level == level && entry.depth == depth) {
+                return entry.value;
+            }
+            double value;
+            if (parallel && depth >= FORK_DEPTH) {
+                List<SpawnTask> spawns = new ArrayList<>();
+                for (int cells = empty; cells != 0; cells &= cells - 1) {
+                    spawns.add(new SpawnTask(board, Integer.numberOfTrailingZeros(cells), empty, level, depth, probability));
+                }
+                RecursiveTask.invokeAll(spawns);
+                value = 0;
+                for (SpawnTask spawn : spawns) {
+                    value += spawn.join();
+                }
+            } else {
+                value = 0;
+                for (int cells = empty; cells != 0; cells &= cells - 1) {
+                    value += spawn(board, Integer.numberOfTrailingZeros(cells), empty, level, depth, probability);
+                }
+            }
+            if (!expired) {
+                cache[index] = new Entry(board, level, depth, value);
+            }
+            return value;
+        }
+
+        // the share of one empty cell in a chance node: every tile that can spawn there, weighted by its odds
+        private double spawn(long board, int cell, int empty, int level, int depth, double probability) {
+            double cellProbability = 1.0 / Integer.bitCount(empty);
+            double value = 0;
+            for (int tile = 1; GameRules.tileProbability(tile, level) > 0; tile++) {
+                double p = cellProbability * GameRules.tileProbability(tile, level);
+                long next = board | (long) tile << (cell * Bitboard.CELL_BITS);
+                value += p * max(next, level, depth, probability * p);
+            }
+            return value;
+        }
+
+        private boolean isExpired() {
+            if (timed && !expired && System.nanoTime() - deadline > 0) {
+                expired = true;
+            }
+            return expired;
+        }
+
+        private final class MoveTask extends RecursiveTask<Double> {
+            private static final long serialVersionUID = 1L;
+
+            private final long board;
+            private final int direction;
+            private final int level;
+            private final int depth;
+            private final double probability;
+
+            MoveTask(long board, int direction, int level, int depth, double probability) {
+                this.board = board;
+                this.direction = direction;
+                this.level = level;
+                this.depth = depth;
+                this.probability = probability;
+            }
+
+            @Override
+            protected Double compute() {
+                return move(board, direction, level, depth, probability);
+            }
+        }
+
+        private final class SpawnTask extends RecursiveTask<Double> {
+            private static final long serialVersionUID = 1L;
+
+            private final long board;
+            private final int cell;
+            private final int empty;
+            private final int level;
+            private final int depth;
+            private final double probability;
+
+            SpawnTask(long board, int cell, int empty, int level, int depth, double probability) {
+                this.board = board;
+                this.cell = cell;
+                this.empty = empty;
+                this.level = level;
+                this.depth = depth;
+                this.probability = probability;
+            }
+
+            @Override
+            protected Double compute() {
+                return spawn(board, cell, empty, level, depth, probability);
+            }
+        }
+    }
+
+    private int index(long board, int level, int depth) {
+        long h = (board ^ ((long) level << 56) ^ ((long) depth << 60)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & (cache.length - 1);
+    }
+}
@@ -2,32 +2,125 @@ import java.io.*;
 import java.net.*;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 public class JokerServer {
-    private List<GameRoom> gameRooms = new ArrayList<>();
+    public static final int MAX_PUZZLE_LENGTH = 1024;
+    // rooms of bots that play from the start, to load the server without clients; -Djoker.botRooms
+    private static final int BOT_ROOMS = Integer.getInteger("joker.botRooms", 0);
+    // start again from the rooms checkpointed by the last run, -Djoker.recover=false throws them away
+    private static final boolean RECOVER = Boolean.parseBoolean(System.getProperty("joker.recover", "true"));
+    // rooms are actors that share this small pool instead of running on the players' threads
+    private final ExecutorService roomWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    // one timer thread for heartbeats and room timeouts
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    // every game played, for replays and post-mortems
+    private final GameJournal journal = GameJournal.open();
+    // checkpoints of the rooms in play, a restarted server carries on with their games
+    private final RoomStore rooms = RoomStore.open();
+    // this server as one shard behind a ShardRouter, or on its own without -Djoker.router
+    private final ShardLink shard = new ShardLink();
+    private final Matchmaker matchmaker = new Matchmaker(roomWorkers, timer, journal, rooms, shard);
     private static final String MULTICAST_IP = "230.0.0.0";
     private static final int MULTICAST_PORT = 4446;
     private ScheduledExecutorService multicastScheduler;
+    // writes queued frames to blocking sockets, see SocketWriter
+    private ExecutorService socketWriters;
+    // pings quiet clients and expires dead sessions, for both the blocking and the nio front end
+    private final Heartbeat heartbeat = new Heartbeat(timer);
+    // blocking JDBC queries for the 't' command, off the nio selector loops
+    private final ExecutorService scoreQueries = Executors.newSingleThreadExecutor();
+    // expectimax searches for the 'H' command, on a ForkJoinPool of their own
+    private final HintEngine hints = new HintEngine();
     public JokerServer(int port) throws IOException {
+        this(port, "thread");
+    }
+
+    // mode "thread" serves every client on its own thread, "virtual" on a virtual thread,
+    // "nio" uses a few selector loops
+    public JokerServer(int port, String mode) throws IOException {
+        heartbeat.start();
+        shard.start(port, heartbeat::sessionCount);
+        recoverRooms();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        if (BOT_ROOMS > 0) {
+            matchmaker.startBotRooms(BOT_ROOMS);
+            System.out.println("Started " + BOT_ROOMS + " rooms of bots.");
+        }
+        if ("nio".equals(mode)) {
+            startMulticastScheduler();
+            new NioServer(this, port, NioServer.DEFAULT_IO_LOOPS).run();
+            return;
+        }
+        ExecutorService connectionExecutor = "virtual".equals(mode) ? newVirtualThreadExecutor() : null;
+        socketWriters = connectionExecutor != null ? connectionExecutor : Executors.newCachedThreadPool();
         ServerSocket srvSocket = new ServerSocket(port);
-        System.out.println("Server started on port: " + port);
+        System.out.println("Server started on port: " + port + " (" + mode + ")");
         startMulticastScheduler();
         while (true) {
             Socket clientSocket = srvSocket.accept();
             System.out.println("Client connected: " + clientSocket.getInetAddress());
-            Thread childThread = new Thread(() -> {
+            Runnable task = () -> {
                 try {
                     serve(clientSocket);
                 } catch (IOException | SQLException ex) {
                     ex.printStackTrace();
                 }
-            });
-            childThread.start();
+            };
+            if (connectionExecutor != null) {
+                connectionExecutor.execute(task);
+            } else {
+                Thread childThread = new Thread(task);
+                childThread.start();
+            }
         }
     }
+
+    // virtual threads need Java 21, look the factory up so the server still builds on older JDKs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21 or later, using a cached thread pool instead.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+    // before the first client is accepted, so a reconnecting player always finds their room
+    private void recoverRooms() {
+        if (!RECOVER) {
+            rooms.clear();
+        } else {
+            List<RoomStore.Snapshot> snapshots = rooms.load();
+            if (!snapshots.isEmpty()) {
+                matchmaker.recover(snapshots);
+                System.out.println("Recovering " + snapshots.size() + " rooms, their players have "
+                        + GameRoom.REJOIN_MILLIS + " ms to reconnect.");
+            }
+        }
+        matchmaker.startCheckpoints();
+    }
+
+    // checkpoint the rooms one last time, then let the journal and the store reach the disk
+    private void shutdown() {
+        if (rooms.isEnabled()) {
+            try {
+                matchmaker.checkpointAll().get(2, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                System.out.println("Not every room was checkpointed at shutdown: " + e);
+            }
+        }
+        rooms.close();
+        journal.close();
+    }
+
+    Heartbeat heartbeat() {
+        return heartbeat;
+    }
+
     private void startMulticastScheduler() {
         multicastScheduler = Executors.newSingleThreadScheduledExecutor();
         multicastScheduler.scheduleAtFixedRate(() -> {
@@ -40,18 +133,16 @@ public class JokerServer {
     }
 
     private void sendTopScoresMulticast() throws IOException, SQLException, ClassNotFoundException {
+        if (!shard.publishesScores()) {
+            // another shard of the router sends the same scores
+            return;
+        }
         ArrayList<HashMap<String, String>> topScores = Database.getScores();
 
         // Serialize the top scores to a byte array
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (DataOutputStream dos = new DataOutputStream(baos)) {
-            dos.writeInt(topScores.size());
-            for (Map<String, String> scoreData : topScores) {
-                dos.writeUTF(scoreData.get("name"));
-                dos.writeInt(Integer.parseInt(scoreData.get("score")));
-                dos.writeInt(Integer.parseInt(scoreData.get("level")));
-                dos.writeUTF(scoreData.get("time"));
-            }
+            writeTopScores(dos, topScores);
         }
 
         byte[] data = baos.toByteArray();
@@ -67,58 +158,63 @@ public class JokerServer {
     public void serve(Socket clientSocket) throws IOException, SQLException {
 
         DataInputStream in = null;
-        DataOutputStream out = null;
         GameRoom assignedRoom = null;
+        Heartbeat.Session session = null;
         try {
 
             in = new DataInputStream(clientSocket.getInputStream());
-            out = new DataOutputStream(clientSocket.getOutputStream());
-
-            String playerName = in.readUTF();
-            String playerId = UUID.randomUUID().toString();
-            PlayerInfo playerInfo = new PlayerInfo(playerName,playerId);
-            System.out.println("Server: Received player name from client: " + playerName+ ", assigned ID: " + playerId);
-            out.writeByte('I');
-            out.writeUTF(playerId);
-            out.flush();
-
-            assignedRoom = null;
-            synchronized (gameRooms) {
-                // Find an available room
-                for (GameRoom room : gameRooms) {
-                    if (!room.PlayerisFull() && !room.isStarted()) {
-                        assignedRoom = room;
-                        break;
-                    }
-                }
-                // Create a new room if none are available
-                if (assignedRoom == null) {
-                    assignedRoom = new GameRoom();
-                    gameRooms.add(assignedRoom);
+            // everything for the client is queued in its outbox and written by its SocketWriter
+            Outbox out = new SocketWriter(clientSocket).outbox;
+            // an expired session is closed under the blocked read, which then fails like any lost connection
+            session = heartbeat.register(out, () -> closeResource(clientSocket));
+
+            // a versioned client opens with HELLO, a legacy client with the length of its name
+            int first = in.readUnsignedShort();
+            int version = Protocol.LEGACY;
+            String playerName;
+            String previousId = null;
+            boolean watch = false;
+            long watchRoomId = 0;
+            if (first == Protocol.HELLO) {
+                int clientVersion = in.readUnsignedByte();
+                version = Math.min(clientVersion, Protocol.VERSION);
+                playerName = in.readUTF();
+                if (clientVersion >= Protocol.RECONNECT) {
+                    previousId = in.readUTF();
                 }
-                boolean joined = assignedRoom.addPlayer(clientSocket, playerInfo, out);
-                if (!joined) {
-                    // Game has already started, cannot join
-                    out.writeByte('M'); // 'M' indicates message
-                    out.writeUTF("The game has already started. Please join a new game.");
-                    out.flush();
-                    return;
+                if (clientVersion >= Protocol.SPECTATORS) {
+                    watch = in.readUnsignedByte() == Protocol.WATCH;
+                    watchRoomId = in.readLong();
                 }
+            } else {
+                byte[] name = new byte[2 + first];
+                name[0] = (byte) (first >> 8);
+                name[1] = (byte) first;
+                in.readFully(name, 2, first);
+                playerName = new DataInputStream(new ByteArrayInputStream(name)).readUTF();
+            }
+            session.greeted(version >= Protocol.HEARTBEAT);
+            PlayerInfo playerInfo = registerPlayer(playerName, previousId, version, out);
 
-                // If the room is full, start the game
-                if (assignedRoom.PlayerisFull()) {
-                    assignedRoom.startGame(clientSocket); // send clientSocket not null
-                }
+            assignedRoom = (watch ? watchRoom(clientSocket, out, version, watchRoomId)
+                    : joinRoom(clientSocket, playerInfo, out, version)).join();
+            if (assignedRoom == null) {
+                // nothing to watch
+                return;
             }
 
+            if (version >= Protocol.FRAMED) {
+                FrameReader frames = new FrameReader();
+                while (true) {
+                    char data = (char) frames.read(in);
+                    session.received();
+                    handleCommand(data, assignedRoom, clientSocket, version, frames.payload());
+                }
+            }
             while (true) {
                 char data = (char) in.readByte();
-                if (data == 't') {
-                    // handle request top 10 score
-                    sendTopScoresToClient(out);
-                } else {
-                    assignedRoom.handleClientData(data, clientSocket,in);
-                }
+                session.received();
+                handleCommand(data, assignedRoom, clientSocket, version, in);
             }
         } catch (IOException e) {
             // client lost connect
@@ -128,36 +224,207 @@ public class JokerServer {
             }
         } finally {
             // close
+            if (session != null) heartbeat.unregister(session);
             closeResource(in);
-            closeResource(out);
             if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
         }
     }
 
-    private void sendTopScoresToClient(DataOutputStream out) {
+    // assign an ID to a new player and send it back with the 'I' frame, a player a recovered room
+    // keeps a seat for gets their old ID back; a new ID is on this shard's part of the ShardRing;
+    // a versioned client also gets 'V' with the protocol version the server settled on
+    PlayerInfo registerPlayer(String playerName, String previousId, int version, Outbox outbox) throws IOException {
+        String playerId = matchmaker.absentPlayerRoom(previousId) != null ? previousId : shard.newPlayerId();
+        PlayerInfo playerInfo = new PlayerInfo(playerName, playerId);
+        System.out.println("Server: Received player name from client: " + playerName + ", assigned ID: " + playerId
+                + ", protocol version " + version);
+        DataOutputStream out = outbox.out();
+        out.writeByte('I');
+        out.writeUTF(playerId);
+        if (version != Protocol.LEGACY) {
+            out.writeByte('V');
+            out.writeByte(version);
+        }
+        outbox.flush();
+        return playerInfo;
+    }
+
+    // put the player back into their recovered room, or into an open room; completes once the room has taken the player
+    CompletableFuture<GameRoom> joinRoom(Socket clientSocket, PlayerInfo playerInfo, Outbox out, int version) {
+        GameRoom recovered = matchmaker.absentPlayerRoom(playerInfo.getPlayerId());
+        if (recovered != null) {
+            return recovered.rejoin(clientSocket, playerInfo, out, version).thenCompose(rejoined -> rejoined
+                    ? CompletableFuture.completedFuture(recovered)
+                    // the room gave the seat up in the meantime
+                    : joinOpenRoom(clientSocket, playerInfo, out, version));
+        }
+        return joinOpenRoom(clientSocket, playerInfo, out, version);
+    }
+
+    private CompletableFuture<GameRoom> joinOpenRoom(Socket clientSocket, PlayerInfo playerInfo, Outbox out, int version) {
+        GameRoom assignedRoom = matchmaker.reserveSeat();
+        return assignedRoom.addPlayer(clientSocket, playerInfo, out, version).thenCompose(joined -> joined
+                ? CompletableFuture.completedFuture(assignedRoom)
+                // Game started between reserving the seat and joining, try another room
+                : joinOpenRoom(clientSocket, playerInfo, out, version));
+    }
+
+    // let the client watch the room with the id, or any game in play for 0; completes with null if there is none
+    CompletableFuture<GameRoom> watchRoom(Socket clientSocket, Outbox out, int version, long roomId) {
+        GameRoom room = matchmaker.roomToWatch(roomId);
+        if (room == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return room.addSpectator(clientSocket, out, version).thenApply(watching -> watching ? room : null);
+    }
+
+    // handle one command byte from a client, any payload is read from in
+    void handleCommand(char data, GameRoom room, Socket clientSocket, int version, DataInputStream in) throws IOException {
+        if (data == 'K') {
+            // answer to a heartbeat ping, receiving it was all that mattered
+            return;
+        } else if (data == 'S' && version >= Protocol.BOARD_SIZES && in.available() > 0) {
+            // start with the board size the first player asked for
+            room.requestStart(clientSocket, in.readUnsignedByte());
+        } else if (data == 'H' && version >= Protocol.HINTS) {
+            // hint for the 4x4 board the client holds: its level, then the packed board
+            int level = in.readUnsignedByte();
+            long board = in.readLong();
+            if (level >= 1 && level <= GameRules.LIMIT) {
+                sendHint(room, clientSocket, board, level);
+            }
+        } else if (data == 't') {
+            // handle request top 10 score
+            sendTopScoresToClient(room, clientSocket);
+        } else if (data == 'P' && version == Protocol.LEGACY) {
+            room.handleClientData(data, clientSocket, readPuzzleData(in));
+        } else if (data == 'P') {
+            // the board packed like Protocol.writeBoard, one long for 4x4 and more for larger boards;
+            // before FRAMED there is no length and the board is always one long
+            byte[] packed = new byte[version >= Protocol.FRAMED ? in.available() : Long.BYTES];
+            in.readFully(packed);
+            room.handlePackedPuzzle(clientSocket, packed);
+        } else {
+            room.handleClientData(data, clientSocket, null);
+        }
+    }
+
+    // a legacy puzzle upload is a length followed by that many ints
+    private int[] readPuzzleData(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PUZZLE_LENGTH) {
+            throw new IOException("Invalid puzzle length: " + length);
+        }
+        int[] puzzle = new int[length];
+        for (int i = 0; i < length; i++) {
+            puzzle[i] = in.readInt();
+        }
+        return puzzle;
+    }
+
+    private void sendTopScoresToClient(GameRoom room, Socket clientSocket) {
+        scoreQueries.execute(() -> queryTopScores(room, clientSocket));
+    }
+
+    private void queryTopScores(GameRoom room, Socket clientSocket) {
         try {
             // Retrieve top 10 scores from the database
             ArrayList<HashMap<String, String>> topScores = Database.getScores();
 
-            out.writeByte('T'); // 'T' indicates top scores
-            out.writeInt(topScores.size());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            writeTopScores(dos, topScores);
+            room.sendToPlayer(clientSocket, 'T', baos.toByteArray()); // 'T' indicates top scores
 
-            for (HashMap<String, String> scoreData : topScores) {
-                out.writeUTF(scoreData.get("name"));
-                out.writeInt(Integer.parseInt(scoreData.get("score")));
-                out.writeInt(Integer.parseInt(scoreData.get("level")));
-                out.writeUTF(scoreData.get("time"));
+        } catch (SQLException | IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 'H' payload: the best Bitboard direction or 0xFF for none, the search depth,
+    // then the expected points of each direction in Bitboard order, NaN for one that moves nothing
+    private void sendHint(GameRoom room, Socket clientSocket, long board, int level) {
+        hints.hint(board, level).thenAccept(hint -> {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(baos);
+                dos.writeByte(hint.direction);
+                dos.writeByte(hint.depth);
+                for (double value : hint.values) {
+                    dos.writeFloat((float) value);
+                }
+                room.sendToPlayer(clientSocket, 'H', baos.toByteArray());
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            out.flush();
+        });
+    }
 
-        }catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        } catch (SQLException | IOException e) {
-            e.printStackTrace();
+    private void writeTopScores(DataOutputStream dos, List<HashMap<String, String>> topScores) throws IOException {
+        dos.writeInt(topScores.size());
+        for (Map<String, String> scoreData : topScores) {
+            dos.writeUTF(scoreData.get("name"));
+            dos.writeInt(Integer.parseInt(scoreData.get("score")));
+            dos.writeInt(Integer.parseInt(scoreData.get("level")));
+            dos.writeUTF(scoreData.get("time"));
         }
     }
 
 
+    // drains one client's outbox into its blocking socket on socketWriters, so a client with a
+    // full TCP window only blocks its own writer and never the room or the other players
+    private class SocketWriter implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final Outbox outbox = new Outbox(this::schedule, this::drop);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed;
+
+        SocketWriter(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        private void schedule() {
+            if (!closed && scheduled.compareAndSet(false, true)) {
+                socketWriters.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] chunk;
+                while (!closed && (chunk = outbox.poll()) != null) {
+                    out.write(chunk);
+                }
+            } catch (IOException e) {
+                // the reading side sees the closed socket and removes the player
+                closed = true;
+                closeSocket();
+            } finally {
+                scheduled.set(false);
+                if (!outbox.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        private void drop() {
+            System.out.println("Client too far behind, disconnecting: " + socket.getInetAddress());
+            closed = true;
+            closeSocket();
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     // close Closeable
     private void closeResource(Closeable resource) {
         if (resource != null) {
@@ -170,8 +437,13 @@ public class JokerServer {
     }
 
 
+    // usage: JokerServer [port] [thread|virtual|nio]
+    // -Djoker.journal.dir=journal records every game there, see GameJournal, and
+    // -Djoker.snapshot.dir=snapshots checkpoints the rooms in play so a restart carries on with them, see RoomStore
     public static void main(String[] args) throws IOException {
-        new JokerServer(12345);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 12345;
+        String mode = args.length > 1 ? args[1] : "thread";
+        new JokerServer(port, mode);
     }
 }
 
@@ -4,6 +4,7 @@ import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.ListView;
 import javafx.stage.Stage;
 
@@ -19,6 +20,9 @@ public class LobbyController {
     private Stage lobbyStage;
     @FXML
     private Button startGameButton;
+    // board size for the game, chosen by the first player
+    @FXML
+    private ChoiceBox<Integer> boardSizeChoice;
 
     private GameEngine gameEngine;
 
@@ -26,9 +30,16 @@ public class LobbyController {
         gameEngine = GameEngine.getInstance();
         gameEngine.setLobbyController(this);
 
+        // 5x5 and 6x6 for bigger groups, the server would take up to GameRules.MAX_SIZE
+        for (int size = GameEngine.SIZE; size <= 6; size++) {
+            boardSizeChoice.getItems().add(size);
+        }
+        boardSizeChoice.setValue(GameEngine.SIZE);
+
         // if current player is the first player show the start game button
         if (gameEngine.isFirstPlayer()) {
             startGameButton.setVisible(true);
+            boardSizeChoice.setVisible(true);
         }
 
         startGameButton.setOnAction(event -> {
@@ -45,7 +56,7 @@ public class LobbyController {
         try {
             if (result.isPresent() && result.get() == ButtonType.OK) {
                 // Send start game command to the server
-                gameEngine.sendStartGameCommand();
+                gameEngine.sendStartGameCommand(boardSizeChoice.getValue());
             } else {
                 // Do nothing, continue waiting
             }
@@ -79,6 +90,7 @@ public class LobbyController {
     public void setFirstPlayer(boolean isFirstPlayer) {
         Platform.runLater(() -> {
             startGameButton.setVisible(isFirstPlayer);
+            boardSizeChoice.setVisible(isFirstPlayer);
         });
     }
 
@@ -0,0 +1,52 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the tasks posted to one GameRoom one at a time, in the order they were posted.
+ * Many mailboxes share a small worker pool; a mailbox holds at most one worker at a time,
+ * so the room's state is only ever touched by a single thread and needs no locks.
+ */
+public class Mailbox implements Executor {
+    // tasks run per turn on a worker before the mailbox yields it to other rooms
+    private static final int BATCH_SIZE = 64;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor workers;
+
+    public Mailbox(Executor workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            for (int i = 0; i < BATCH_SIZE && (task = tasks.poll()) != null; i++) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the server's rooms and index of the rooms that still take players.
+ * A room is in the queue while it is waiting in the lobby with a free seat. Joining reserves
+ * a seat with a compare-and-set on the room at the head of the queue, so there is no global
+ * lock and no scan over old rooms. Rooms leave the index when they fill up, start or finish,
+ * and leave the registry when they are closed, see GameRoom.State.
+ * Rooms recovered from the RoomStore after a restart are in the registry only, and their
+ * players are found by player id when they reconnect.
+ */
+public class Matchmaker {
+    private final Queue<GameRoom> openRooms = new ConcurrentLinkedQueue<>();
+    // every room that is not closed yet
+    private final Set<GameRoom> liveRooms = ConcurrentHashMap.newKeySet();
+    private final AtomicLong closedRooms = new AtomicLong();
+    // rooms of bots only to keep playing, see startBotRooms
+    private volatile int botRooms;
+    private final Executor roomWorkers;
+    private final ScheduledExecutorService timer;
+    private final GameJournal journal;
+    private final RoomStore store;
+    // mints the ids of new rooms, on this server's part of the ShardRing
+    private final ShardLink shard;
+    // players of recovered rooms who have not reconnected yet, by player id
+    private final Map<String, GameRoom> absentPlayers = new ConcurrentHashMap<>();
+
+    public Matchmaker(Executor roomWorkers, ScheduledExecutorService timer, GameJournal journal, RoomStore store,
+                      ShardLink shard) {
+        this.roomWorkers = roomWorkers;
+        this.timer = timer;
+        this.journal = journal;
+        this.store = store;
+        this.shard = shard;
+    }
+
+    // reserve a seat in the oldest open room, or in a new room if none is open
+    public GameRoom reserveSeat() {
+        GameRoom room;
+        while ((room = openRooms.peek()) != null) {
+            if (room.tryReserveSeat()) {
+                if (!room.hasFreeSeat()) {
+                    openRooms.remove(room);
+                }
+                return room;
+            }
+            // full or started, it no longer belongs in the index
+            openRooms.remove(room);
+        }
+        room = new GameRoom(this, roomWorkers, timer, journal, store);
+        room.tryReserveSeat();
+        liveRooms.add(room);
+        openRooms.add(room);
+        return room;
+    }
+
+    // keep count rooms of bots playing, a finished one is replaced when it closes; for load tests
+    public void startBotRooms(int count) {
+        botRooms = count;
+        for (int i = 0; i < count; i++) {
+            startBotRoom();
+        }
+    }
+
+    private void startBotRoom() {
+        GameRoom room = new GameRoom(this, roomWorkers, timer, journal, store);
+        liveRooms.add(room);
+        room.fillWithBots();
+    }
+
+    // carry on with the games checkpointed by the previous run of the server
+    public void recover(List<RoomStore.Snapshot> snapshots) {
+        for (RoomStore.Snapshot snapshot : snapshots) {
+            GameRoom room = new GameRoom(this, roomWorkers, timer, journal, store, snapshot.roomId, snapshot.seed);
+            liveRooms.add(room);
+            for (RoomStore.Player player : snapshot.players) {
+                if (!player.bot) absentPlayers.put(player.playerId, room);
+            }
+            room.restore(snapshot);
+        }
+    }
+
+    // checkpoint every room that changed, every RoomStore.INTERVAL_MILLIS
+    public void startCheckpoints() {
+        if (store.isEnabled()) {
+            timer.scheduleWithFixedDelay(this::checkpointAll, RoomStore.INTERVAL_MILLIS, RoomStore.INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // completes once every room has handed the store its snapshot
+    public CompletableFuture<Void> checkpointAll() {
+        return CompletableFuture.allOf(liveRooms.stream().map(GameRoom::checkpoint).toArray(CompletableFuture[]::new));
+    }
+
+    // the room with the id, or if there is none a room in play, or any room; null when the server has no rooms
+    public GameRoom roomToWatch(long id) {
+        GameRoom playing = null;
+        GameRoom any = null;
+        for (GameRoom room : liveRooms) {
+            if (room.getId() == id) return room;
+            if (playing == null && room.getState() == GameRoom.State.PLAYING && !room.isBotRoom()) playing = room;
+            if (any == null) any = room;
+        }
+        return playing != null ? playing : any;
+    }
+
+    // a positive id, one a ShardRouter sends spectators of the room to this server for
+    long newRoomId() {
+        return shard.newRoomId();
+    }
+
+    // the recovered room keeping a seat for the player, null if there is none
+    public GameRoom absentPlayerRoom(String playerId) {
+        return playerId == null ? null : absentPlayers.get(playerId);
+    }
+
+    // the player got their seat back, or the room stopped keeping it
+    void forgetAbsent(String playerId) {
+        absentPlayers.remove(playerId);
+    }
+
+    // a seat became free again in a lobby that was full
+    void reopen(GameRoom room) {
+        if (!openRooms.contains(room)) {
+            openRooms.add(room);
+        }
+    }
+
+    // the room started or finished
+    void remove(GameRoom room) {
+        openRooms.remove(room);
+    }
+
+    // the room is closed and released
+    void closed(GameRoom room) {
+        openRooms.remove(room);
+        absentPlayers.values().removeIf(r -> r == room);
+        if (liveRooms.remove(room)) {
+            closedRooms.incrementAndGet();
+            if (room.isBotRoom() && botRooms > 0) {
+                startBotRoom();
+            }
+        }
+    }
+
+    public int liveRoomCount() {
+        return liveRooms.size();
+    }
+
+    public long closedRoomCount() {
+        return closedRooms.get();
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.SplittableRandom;
+
+/**
+ * Measures GameRules move throughput for every board size a room can play on.
+ * Each round copies one of a set of half full boards and moves it, taking the directions in turn,
+ * spawn included, so the numbers are what a room pays per player move.
+ * usage: MoveBenchmark [seconds per size]
+ *
+ * Measured on a 1 core Linux box, JDK 17, 2 seconds per size:
+ *   size   moves/s      ns/move   ns/cell
+ *   4x4      8,325,120     120       7.5   (packed, Bitboard tables)
+ *   5x5      2,424,832     412      16.5
+ *   6x6      1,673,216     598      16.6
+ *   7x7      1,251,328     799      16.3
+ *   8x8        987,136    1013      15.8
+ * The cost per cell stays flat from 5x5 up, a move is linear in the number of cells.
+ */
+public class MoveBenchmark {
+    private static final int BOARDS = 1024;
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        System.out.println("size   moves/s      ns/move   ns/cell");
+        for (int size = GameRules.SIZE; size <= GameRules.MAX_SIZE; size++) {
+            // once to warm up, once to measure
+            run(size, seconds / 2);
+            long moves = run(size, seconds);
+            double nsPerMove = seconds * 1e9 / moves;
+            System.out.printf("%dx%d   %,12d  %6.0f  %8.1f%n", size, size, (long) (moves / seconds),
+                    nsPerMove, nsPerMove / (size * size));
+        }
+    }
+
+    // number of moves made in the given time
+    private static long run(int size, double seconds) {
+        SplittableRandom random = new SplittableRandom(42);
+        int cells = size * size;
+        int[][] boards = new int[BOARDS][cells];
+        for (int[] board : boards) {
+            for (int i = 0; i < cells; i++) {
+                board[i] = random.nextInt(2) == 0 ? 0 : 1 + random.nextInt(6);
+            }
+        }
+        int[] board = new int[cells];
+        GameRules.Result result = new GameRules.Result();
+        long moves = 0;
+        long checksum = 0;
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        while (System.nanoTime() < end) {
+            // check the clock every 4096 moves
+            for (int n = 0; n < 4096; n++) {
+                System.arraycopy(boards[(int) (moves & (BOARDS - 1))], 0, board, 0, cells);
+                GameRules.move(board, size, (int) (moves & 3), 6, random, result);
+                checksum += result.scoreDelta + board[0];
+                moves++;
+            }
+        }
+        if (checksum == 42) {
+            // keep the JIT from dropping the moves
+            System.out.println();
+        }
+        return moves;
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking front end for JokerServer.
+ * The acceptor hands every new channel to one of a small fixed set of I/O loops.
+ * Each loop owns a Selector, decodes client frames from its read buffers and passes
+ * complete commands to the player's GameRoom, so idle players no longer cost a thread each.
+ */
+public class NioServer {
+    public static final int DEFAULT_IO_LOOPS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int READ_BUFFER_SIZE = 4096;
+    // the largest HELLO, with the longest name and previous id, and one frame of the largest size after it;
+    // a client never needs more buffered, one that floods the server before it has joined is dropped
+    private static final int MAX_READ_BUFFER_SIZE = 3 + 2 * (2 + 0xFFFF) + 9 + Protocol.HEADER_LENGTH + Protocol.MAX_FRAME_LENGTH;
+
+    private final JokerServer server;
+    private final int port;
+    private final IoLoop[] loops;
+
+    public NioServer(JokerServer server, int port, int loopCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        loops = new IoLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new IoLoop("nio-loop-" + i);
+        }
+    }
+
+    // accept clients forever and spread them over the I/O loops
+    public void run() throws IOException {
+        ServerSocketChannel srvChannel = ServerSocketChannel.open();
+        srvChannel.bind(new InetSocketAddress(port));
+        System.out.println("Server started on port: " + port + " (nio, " + loops.length + " I/O loops)");
+        for (IoLoop loop : loops) {
+            loop.start();
+        }
+        int next = 0;
+        while (true) {
+            SocketChannel channel = srvChannel.accept();
+            System.out.println("Client connected: " + channel.socket().getInetAddress());
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        // run the task on this loop, waking the selector if called from another thread
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.writePending();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // one client channel with its read buffer and queue of outgoing bytes
+    private class Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Socket socket;
+        // frames queued by the room, written whenever the channel takes them
+        private final Outbox out;
+        // buffers taken from the outbox but not fully written yet, only used on the loop thread
+        private final Deque<ByteBuffer> inFlight = new ArrayDeque<>();
+        private ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private PlayerInfo playerInfo;
+        private int version = Protocol.LEGACY;
+        private final FrameReader frames = new FrameReader();
+        private GameRoom room;
+        private boolean closed;
+        // set while decodeFrames runs, a join that completes right away must not decode again
+        private boolean decoding;
+        private final Heartbeat.Session session;
+
+        Connection(IoLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.socket = channel.socket();
+            this.out = new Outbox(() -> loop.execute(this::writePending), () -> loop.execute(this::drop));
+            this.session = server.heartbeat().register(out, () -> loop.execute(this::close));
+        }
+
+        void read() {
+            try {
+                int n = channel.read(readBuf);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                if (n > 0) {
+                    session.received();
+                }
+                decodeFrames();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void decodeFrames() throws IOException {
+            readBuf.flip();
+            decoding = true;
+            try {
+                while (decodeFrame()) {
+                    // keep going until the buffer holds no complete frame
+                }
+            } finally {
+                decoding = false;
+                readBuf.compact();
+            }
+            if (!readBuf.hasRemaining()) {
+                if (readBuf.capacity() >= MAX_READ_BUFFER_SIZE) {
+                    throw new IOException("Client sent more than it may before being read");
+                }
+                // a single frame is larger than the buffer, grow it
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuf.capacity() * 2, MAX_READ_BUFFER_SIZE));
+                readBuf.flip();
+                bigger.put(readBuf);
+                readBuf = bigger;
+            }
+        }
+
+        // decode one complete frame if the buffer holds it, returns false if more bytes are needed
+        private boolean decodeFrame() throws IOException {
+            int available = readBuf.remaining();
+            if (playerInfo == null) {
+                // the first frame is HELLO, a version byte and the name, from RECONNECT on also the
+                // previous player id and from SPECTATORS on the role and room, or from legacy clients just the name
+                if (available < 2) return false;
+                int start = readBuf.position();
+                int first = readBuf.getShort(start) & 0xFFFF;
+                int nameOffset = 0;
+                int clientVersion = Protocol.LEGACY;
+                if (first == Protocol.HELLO) {
+                    if (available < 5) return false;
+                    nameOffset = 3;
+                    clientVersion = readBuf.get(start + 2) & 0xFF;
+                }
+                int length = readBuf.getShort(start + nameOffset) & 0xFFFF;
+                int idOffset = nameOffset + 2 + length;
+                if (available < idOffset) return false;
+                int idLength = -1;
+                if (clientVersion >= Protocol.RECONNECT) {
+                    if (available < idOffset + 2) return false;
+                    idLength = readBuf.getShort(start + idOffset) & 0xFFFF;
+                    if (available < idOffset + 2 + idLength) return false;
+                }
+                if (clientVersion >= Protocol.SPECTATORS && available < idOffset + 2 + idLength + 9) return false;
+                if (first == Protocol.HELLO) {
+                    readBuf.getShort();
+                    readBuf.get();
+                    version = Math.min(clientVersion, Protocol.VERSION);
+                }
+                String playerName = new DataInputStream(new ByteArrayInputStream(take(2 + length))).readUTF();
+                String previousId = idLength < 0 ? null : new DataInputStream(new ByteArrayInputStream(take(2 + idLength))).readUTF();
+                boolean watch = false;
+                long watchRoomId = 0;
+                if (clientVersion >= Protocol.SPECTATORS) {
+                    watch = (readBuf.get() & 0xFF) == Protocol.WATCH;
+                    watchRoomId = readBuf.getLong();
+                }
+                session.greeted(version >= Protocol.HEARTBEAT);
+                playerInfo = server.registerPlayer(playerName, previousId, version, out);
+                (watch ? server.watchRoom(socket, out, version, watchRoomId) : server.joinRoom(socket, playerInfo, out, version))
+                        .thenAccept(joinedRoom -> loop.execute(() -> onJoined(joinedRoom)));
+                return true;
+            }
+
+            // hold further commands back until the room has taken the player
+            if (room == null || available < 1) return false;
+            if (version >= Protocol.FRAMED) {
+                int frameLength = FrameReader.frameLength(readBuf);
+                if (frameLength < 0) return false;
+                // parse the payload where it is, the read buffer is only compacted after decoding
+                int start = readBuf.position();
+                char data = (char) readBuf.get(start);
+                DataInputStream in = frames.payload(readBuf.array(), readBuf.arrayOffset() + start + Protocol.HEADER_LENGTH,
+                        frameLength - Protocol.HEADER_LENGTH);
+                readBuf.position(start + frameLength);
+                server.handleCommand(data, room, socket, version, in);
+                return true;
+            }
+            char data = (char) readBuf.get(readBuf.position());
+            int frameLength = 1;
+            if (data == 'P' && version != Protocol.LEGACY) {
+                // 'P' carries the packed board
+                frameLength = 9;
+                if (available < frameLength) return false;
+            } else if (data == 'P') {
+                // legacy 'P' carries a length and that many ints of puzzle data
+                if (available < 5) return false;
+                int length = readBuf.getInt(readBuf.position() + 1);
+                if (length < 0 || length > JokerServer.MAX_PUZZLE_LENGTH) {
+                    throw new IOException("Invalid puzzle length: " + length);
+                }
+                frameLength = 5 + length * 4;
+                if (available < frameLength) return false;
+            }
+            byte[] frame = take(frameLength);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+            server.handleCommand(data, room, socket, version, in);
+            return true;
+        }
+
+        private void onJoined(GameRoom joinedRoom) {
+            if (joinedRoom == null) {
+                // nothing to watch
+                close();
+                return;
+            }
+            room = joinedRoom;
+            if (closed) {
+                room.removePlayer(socket);
+                return;
+            }
+            if (decoding) {
+                // joined from inside decodeFrame, the running loop picks up the held back commands
+                return;
+            }
+            try {
+                // commands that arrived while joining are still in the buffer
+                decodeFrames();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private byte[] take(int length) {
+            byte[] bytes = new byte[length];
+            readBuf.get(bytes);
+            return bytes;
+        }
+
+        void writePending() {
+            if (closed) return;
+            try {
+                while (true) {
+                    // new chunks stay in the outbox, where they can be coalesced, until the last write is done
+                    if (inFlight.isEmpty()) {
+                        byte[] chunk;
+                        while ((chunk = out.poll()) != null) {
+                            inFlight.add(ByteBuffer.wrap(chunk));
+                        }
+                    }
+                    if (inFlight.isEmpty()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    // gathering write: everything queued so far goes out in one call
+                    channel.write(inFlight.toArray(new ByteBuffer[0]));
+                    while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+                        inFlight.poll();
+                    }
+                    if (!inFlight.isEmpty()) {
+                        // socket buffer is full, wait until the channel is writable again
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private void drop() {
+            if (closed) return;
+            System.out.println("Client too far behind, disconnecting: " + socket.getInetAddress());
+            close();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            server.heartbeat().unregister(session);
+            // client lost connect
+            System.out.println("Client disconnected: " + socket.getInetAddress());
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (room != null) {
+                room.removePlayer(socket);
+            }
+        }
+    }
+}
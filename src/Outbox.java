@@ -0,0 +1,184 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Frames waiting to be written to one client.
+ * The room writes a player's frames into out() and hands them over with flush() at the end
+ * of every event; the connection drains the queue on its own writer, so a client whose TCP
+ * window is full only holds up its own queue and never the room.
+ * Board state that has not been written yet is replaced by newer state instead of queueing
+ * behind it, and a client that falls further behind than MAX_BYTES or MAX_LAG_MILLIS is dropped.
+ * A spectator's outbox reads on from its room's SpectatorFeed whenever its own queue is empty.
+ */
+public class Outbox {
+    // set with -Djoker.outbox.maxBytes and -Djoker.outbox.maxLagMillis
+    public static final int MAX_BYTES = Integer.getInteger("joker.outbox.maxBytes", 256 * 1024);
+    public static final int MAX_LAG_MILLIS = Integer.getInteger("joker.outbox.maxLagMillis", 10_000);
+
+    // frames of the current event, only touched by the room that owns the player
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(pending);
+
+    private final Deque<Chunk> queue = new ArrayDeque<>();
+    private int queuedBytes;
+    private boolean overflowed;
+    private boolean overflowReported;
+    private final Runnable onReady;
+    private final Runnable onOverflow;
+    // the feed a spectator follows, the position of the next chunk to read from it, and what to do on falling a ring behind
+    private SpectatorFeed feed;
+    private long feedPosition;
+    private Runnable onLapped;
+
+    private static final class Chunk {
+        final byte[] bytes;
+        // board state, which newer state may replace while it is still queued
+        final boolean state;
+        final long queuedAt;
+
+        Chunk(byte[] bytes, boolean state, long queuedAt) {
+            this.bytes = bytes;
+            this.state = state;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    // onReady is called when there is something to write, onOverflow when the client is too far behind
+    public Outbox(Runnable onReady, Runnable onOverflow) {
+        this.onReady = onReady;
+        this.onOverflow = onOverflow;
+    }
+
+    public DataOutputStream out() {
+        return out;
+    }
+
+    // queue everything written to out() since the last flush
+    public void flush() {
+        boolean ready;
+        synchronized (this) {
+            ready = commit();
+        }
+        signal(ready);
+    }
+
+    // queue board state after the frames written so far, dropping state that is still waiting
+    public void offerState(byte[] frames) {
+        synchronized (this) {
+            commit();
+            long queuedAt = System.nanoTime();
+            Iterator<Chunk> it = queue.iterator();
+            while (it.hasNext()) {
+                Chunk chunk = it.next();
+                if (chunk.state) {
+                    it.remove();
+                    queuedBytes -= chunk.bytes.length;
+                    // the client has waited for state since the stale one was queued
+                    queuedAt = Math.min(queuedAt, chunk.queuedAt);
+                }
+            }
+            add(new Chunk(frames, true, queuedAt));
+        }
+        signal(true);
+    }
+
+    // queue ready-made frames from any thread, such as a heartbeat ping
+    public void offer(byte[] frames) {
+        synchronized (this) {
+            add(new Chunk(frames, false, System.nanoTime()));
+        }
+        signal(true);
+    }
+
+    // read the feed from position on once the queue is empty, replacing any feed followed before
+    public synchronized void follow(SpectatorFeed feed, long position, Runnable onLapped) {
+        this.feed = feed;
+        this.feedPosition = position;
+        this.onLapped = onLapped;
+    }
+
+    // the followed feed has something new
+    public void wake() {
+        signal(true);
+    }
+
+    // how long the oldest queued chunk has been waiting, 0 when nothing is queued
+    public synchronized long lagMillis() {
+        Chunk oldest = queue.peek();
+        return oldest == null ? 0 : (System.nanoTime() - oldest.queuedAt) / 1_000_000;
+    }
+
+    // state still queued means the client is behind; the room then sends full boards, not deltas
+    public synchronized boolean hasPendingState() {
+        for (Chunk chunk : queue) {
+            if (chunk.state) return true;
+        }
+        return false;
+    }
+
+    // next bytes to write, or null when the queue is empty and the feed has nothing new
+    public synchronized byte[] poll() {
+        Chunk chunk = queue.poll();
+        if (chunk == null) return pollFeed();
+        queuedBytes -= chunk.bytes.length;
+        return chunk.bytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty() && (feed == null || feed.frame(feedPosition) == null);
+    }
+
+    private byte[] pollFeed() {
+        if (feed == null) return null;
+        byte[] bytes = feed.frame(feedPosition);
+        if (bytes == SpectatorFeed.LAPPED) {
+            // stop reading until the room has sent the game again and follow is called anew
+            feed = null;
+            onLapped.run();
+            return null;
+        }
+        if (bytes != null) feedPosition++;
+        return bytes;
+    }
+
+    private boolean commit() {
+        if (pending.size() == 0) return false;
+        add(new Chunk(pending.toByteArray(), false, System.nanoTime()));
+        pending.reset();
+        return true;
+    }
+
+    private void add(Chunk chunk) {
+        if (overflowed) return;
+        queue.add(chunk);
+        queuedBytes += chunk.bytes.length;
+        long lagMillis = (System.nanoTime() - queue.peek().queuedAt) / 1_000_000;
+        if (queuedBytes > MAX_BYTES || lagMillis > MAX_LAG_MILLIS) {
+            overflowed = true;
+            queue.clear();
+            queuedBytes = 0;
+        }
+    }
+
+    // the callbacks run outside the lock, they may close the connection
+    private void signal(boolean ready) {
+        boolean drop;
+        synchronized (this) {
+            if (overflowed) {
+                drop = !overflowReported;
+                overflowReported = true;
+                ready = false;
+            } else {
+                drop = false;
+            }
+        }
+        if (drop) {
+            onOverflow.run();
+        } else if (ready) {
+            onReady.run();
+        }
+    }
+}
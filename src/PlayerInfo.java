@@ -6,6 +6,8 @@ public class PlayerInfo {
     private int moves;
     private static final long serialVersionUID = 1L;
     private String playerId;
+    // seat number in the game room, -1 when unknown
+    private int seat = -1;
     public PlayerInfo(String name,String playerId) {
         this.name = name;
         this.score = 0;
@@ -65,4 +67,12 @@ public class PlayerInfo {
     public void setMoves(int moves) {
         this.moves = moves;
     }
+
+    public int getSeat() {
+        return seat;
+    }
+
+    public void setSeat(int seat) {
+        this.seat = seat;
+    }
 }
@@ -0,0 +1,80 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Protocol versions and the packed board format shared by the client and the server.
+ *
+ * A versioned client opens with HELLO, its protocol version byte and its name, from RECONNECT on
+ * followed by the player id it had before and from SPECTATORS on by its role and the room it
+ * wants to watch. A legacy client only writes its name, whose UTF length is never as large as
+ * HELLO. The server answers a versioned client with 'V' and the version both sides will use,
+ * a router in front of several servers may send it on with 'R' first.
+ *
+ * From FRAMED on, every later frame in either direction starts with a header: the frame
+ * type, FRAME_FORMAT and the payload length as an unsigned short. See FrameWriter and FrameReader.
+ */
+public final class Protocol {
+    // the original protocol: boards are an int count plus one int per cell, no deltas
+    public static final int LEGACY = 1;
+    // boards packed 4 bits per cell into a long, deltas with sequence numbers
+    public static final int PACKED_BOARDS = 2;
+    // players named by their seat number in 'L', 'N' and 'P', the id is only sent in 'I'
+    public static final int SEAT_INDICES = 3;
+    // every frame after the handshake carries a header with its type and payload length
+    public static final int FRAMED = 4;
+    // the server pings a quiet client with an empty 'K' frame and the client answers with 'K'
+    public static final int HEARTBEAT = 5;
+    // rooms play on boards larger than 4x4: 'G' carries the board size and 'S' may ask for one
+    public static final int BOARD_SIZES = 6;
+    // 'H' asks for a hint on a 4x4 board and the server answers with 'H', see HintEngine
+    public static final int HINTS = 7;
+    // 'G' also carries the room's seed, the game can be replayed from it and the moves, see GameReplay
+    public static final int SEEDS = 8;
+    // HELLO also carries the player id of an earlier connection, empty for none; a server restarted
+    // from its room checkpoints gives that player their seat back, see RoomStore
+    public static final int RECONNECT = 9;
+    // HELLO also carries a role, PLAY or WATCH, and the id of the room to watch or 0 for any game in play;
+    // a spectator gets 'W' with the room's id instead of a seat, then every frame the players get
+    public static final int SPECTATORS = 10;
+    // a ShardRouter may answer HELLO with 'R', the host and port of the shard to say HELLO to instead
+    public static final int SHARDS = 11;
+    public static final int VERSION = SHARDS;
+    public static final int HELLO = 0xB70C;
+    public static final int PLAY = 0;
+    public static final int WATCH = 1;
+
+    // layout of the frame header, a reader drops the connection on any other value
+    public static final int FRAME_FORMAT = 1;
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 0xFFFF;
+
+    // the packed board format is Bitboard's
+    public static final int CELL_BITS = Bitboard.CELL_BITS;
+    public static final int CELL_MASK = Bitboard.CELL_MASK;
+    public static final int PACKED_CELLS = Bitboard.CELLS;
+
+    private Protocol() {
+    }
+
+    public static long packBoard(int[] board) {
+        return Bitboard.pack(board);
+    }
+
+    public static void unpackBoard(long packed, int[] board) {
+        Bitboard.unpack(packed, board);
+    }
+
+    // the board as packed longs of PACKED_CELLS cells each, a 4x4 board is a single long
+    public static void writeBoard(DataOutput out, int[] board) throws IOException {
+        for (int from = 0; from < board.length; from += PACKED_CELLS) {
+            out.writeLong(Bitboard.pack(board, from, Math.min(board.length, from + PACKED_CELLS)));
+        }
+    }
+
+    public static void readBoard(DataInput in, int[] board) throws IOException {
+        for (int from = 0; from < board.length; from += PACKED_CELLS) {
+            Bitboard.unpack(in.readLong(), board, from, Math.min(board.length, from + PACKED_CELLS));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checkpoints of the rooms in play, so a restarted server carries on with their games.
+ * Every INTERVAL_MILLIS each room that changed takes a snapshot inside its mailbox, and the
+ * store writes it on its own thread, off the rooms' path. A room is two files in DIR:
+ *   room-ID.log   the moves and puzzle uploads the room accepted, only the new ones are appended
+ *                 at a checkpoint: byte kind (the Bitboard direction or GameJournal.PUZZLE), byte seat,
+ *                 and for a puzzle the board packed like Protocol.writeBoard
+ *   room-ID.snap  replaced whole: MAGIC, FORMAT, room id, seed, board size, the number of inputs and
+ *                 of log bytes it covers, whose turn it is, the players, then the board
+ * The log is appended before the snapshot is replaced, so a snapshot never covers more than the
+ * log holds. On restart the room replays the log from the seed, which brings the generator back
+ * to where it was, and checks the board it gets against the snapshot's, see GameRoom.restore.
+ * A finished or abandoned game loses its files.
+ */
+public class RoomStore {
+    // set with -Djoker.snapshot.dir to checkpoint rooms there, without it there are none; -Djoker.snapshot.intervalMillis
+    public static final String DIR = System.getProperty("joker.snapshot.dir", "");
+    public static final int INTERVAL_MILLIS = Integer.getInteger("joker.snapshot.intervalMillis", 2000);
+
+    public static final int MAGIC = 0x4A4B5253;
+    public static final int FORMAT = 1;
+
+    private final Path dir;
+    // writes snapshots in the order the rooms took them
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "room-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // rooms whose files could not be written, their later checkpoints would not fit the log
+    private final Set<Long> broken = new HashSet<>();
+
+    /** One player of a snapshot, by seat. */
+    public static final class Player {
+        int seat;
+        boolean bot;
+        String name;
+        String playerId;
+        int score;
+        int level;
+        int combo;
+        int moves;
+    }
+
+    /** A room as it was at a checkpoint. */
+    public static final class Snapshot {
+        long roomId;
+        long seed;
+        int size;
+        // inputs and log bytes this snapshot covers
+        int inputs;
+        long inputBytes;
+        int currentPlayerIndex;
+        int movesRemaining;
+        boolean puzzleUploaded;
+        int boardSeq;
+        // in turn order
+        final List<Player> players = new ArrayList<>();
+        int[] board;
+        // the inputs this snapshot covers, only set when loaded
+        byte[] log;
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(roomId);
+            out.writeLong(seed);
+            out.writeByte(size);
+            out.writeInt(inputs);
+            out.writeLong(inputBytes);
+            out.writeByte(currentPlayerIndex);
+            out.writeByte(movesRemaining);
+            out.writeBoolean(puzzleUploaded);
+            out.writeInt(boardSeq);
+            out.writeByte(players.size());
+            for (Player player : players) {
+                out.writeByte(player.seat);
+                out.writeBoolean(player.bot);
+                out.writeUTF(player.name);
+                out.writeUTF(player.playerId);
+                out.writeInt(player.score);
+                out.writeInt(player.level);
+                out.writeInt(player.combo);
+                out.writeInt(player.moves);
+            }
+            Protocol.writeBoard(out, board);
+        }
+
+        static Snapshot read(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Not a room snapshot");
+            }
+            Snapshot snapshot = new Snapshot();
+            snapshot.roomId = in.readLong();
+            snapshot.seed = in.readLong();
+            snapshot.size = in.readUnsignedByte();
+            snapshot.inputs = in.readInt();
+            snapshot.inputBytes = in.readLong();
+            snapshot.currentPlayerIndex = in.readUnsignedByte();
+            snapshot.movesRemaining = in.readUnsignedByte();
+            snapshot.puzzleUploaded = in.readBoolean();
+            snapshot.boardSeq = in.readInt();
+            int count = in.readUnsignedByte();
+            for (int i = 0; i < count; i++) {
+                Player player = new Player();
+                player.seat = in.readUnsignedByte();
+                player.bot = in.readBoolean();
+                player.name = in.readUTF();
+                player.playerId = in.readUTF();
+                player.score = in.readInt();
+                player.level = in.readInt();
+                player.combo = in.readInt();
+                player.moves = in.readInt();
+                snapshot.players.add(player);
+            }
+            if (snapshot.size < GameRules.SIZE || snapshot.size > GameRules.MAX_SIZE
+                    || count == 0 || snapshot.currentPlayerIndex >= count) {
+                throw new IOException("Invalid room snapshot");
+            }
+            snapshot.board = new int[snapshot.size * snapshot.size];
+            Protocol.readBoard(in, snapshot.board);
+            return snapshot;
+        }
+    }
+
+    // a store that keeps nothing
+    private RoomStore() {
+        this.dir = null;
+    }
+
+    private RoomStore(Path dir) {
+        this.dir = dir;
+    }
+
+    // the store in DIR; without DIR, or if it can not be created, a store that keeps nothing
+    public static RoomStore open() {
+        if (DIR.isEmpty()) {
+            return new RoomStore();
+        }
+        try {
+            Path dir = Paths.get(DIR);
+            Files.createDirectories(dir);
+            return new RoomStore(dir);
+        } catch (IOException e) {
+            System.out.println("Room store: can not open " + DIR + ", rooms are not checkpointed: " + e);
+            return new RoomStore();
+        }
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    // append the room's new inputs and replace its snapshot, on the writer thread
+    public void save(Snapshot snapshot, byte[] newInputs) {
+        if (dir == null) return;
+        writer.execute(() -> {
+            long roomId = snapshot.roomId;
+            if (broken.contains(roomId)) return;
+            try {
+                if (newInputs.length > 0) {
+                    Files.write(log(roomId), newInputs, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+                snapshot.write(new DataOutputStream(bytes));
+                Path temp = dir.resolve("room-" + Long.toHexString(roomId) + ".tmp");
+                Files.write(temp, bytes.toByteArray());
+                Files.move(temp, snap(roomId), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.out.println("Room store: can not checkpoint room " + Long.toHexString(roomId) + ", it will not be recovered: " + e);
+                broken.add(roomId);
+                deleteFiles(roomId);
+            }
+        });
+    }
+
+    // the room's game is over or abandoned, there is nothing left to recover
+    public void delete(long roomId) {
+        if (dir == null) return;
+        writer.execute(() -> {
+            broken.remove(roomId);
+            deleteFiles(roomId);
+        });
+    }
+
+    // every room checkpointed by an earlier run, with the inputs its snapshot covers; a log that holds
+    // more than that is cut back, rooms whose files do not fit together are dropped
+    public List<Snapshot> load() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        if (dir == null) return snapshots;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "room-*.snap")) {
+            for (Path file : files) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    Snapshot snapshot = Snapshot.read(in);
+                    Path log = log(snapshot.roomId);
+                    long length = Files.exists(log) ? Files.size(log) : 0;
+                    if (length < snapshot.inputBytes || snapshot.inputBytes > Integer.MAX_VALUE) {
+                        throw new IOException("the log is shorter than the snapshot");
+                    }
+                    if (length > snapshot.inputBytes) {
+                        try (RandomAccessFile raf = new RandomAccessFile(log.toFile(), "rw")) {
+                            raf.setLength(snapshot.inputBytes);
+                        }
+                    }
+                    snapshot.log = snapshot.inputBytes == 0 ? new byte[0] : Files.readAllBytes(log);
+                    snapshots.add(snapshot);
+                } catch (IOException e) {
+                    System.out.println("Room store: skipping " + file.getFileName() + ": " + e);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Room store: can not read " + dir + ": " + e);
+        }
+        return snapshots;
+    }
+
+    // forget every checkpoint, for a server started without recovery
+    public void clear() {
+        if (dir == null) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "room-*")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Room store: can not clear " + dir + ": " + e);
+        }
+    }
+
+    // let the checkpoints already taken reach the disk, at shutdown
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deleteFiles(long roomId) {
+        try {
+            Files.deleteIfExists(snap(roomId));
+            Files.deleteIfExists(log(roomId));
+        } catch (IOException e) {
+            System.out.println("Room store: can not delete room " + Long.toHexString(roomId) + ": " + e);
+        }
+    }
+
+    private Path snap(long roomId) {
+        return dir.resolve("room-" + Long.toHexString(roomId) + ".snap");
+    }
+
+    private Path log(long roomId) {
+        return dir.resolve("room-" + Long.toHexString(roomId) + ".log");
+    }
+}
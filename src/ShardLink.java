@@ -0,0 +1,119 @@
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * A JokerServer's side of a ShardRouter. Every REPORT_MILLIS the shard tells the router by UDP
+ * how many connections it has, and the router answers with the shards of the ring and
+ * whether this shard is the one that multicasts the top scores. Room and player ids are minted
+ * on this shard's part of the ring, so start waits for the router's first answer before the
+ * server makes any room or takes any player.
+ * Without -Djoker.router the server is on its own: any id will do and it always multicasts.
+ */
+public class ShardLink {
+    // set with -Djoker.router=host:port, and -Djoker.shard=host:port for the address clients reach this server on
+    public static final String ROUTER = System.getProperty("joker.router", "");
+    private static final int REPORT_MILLIS = 1000;
+
+    private volatile String address = "";
+    // the router's ring, empty until it first answers
+    private volatile ShardRing ring = new ShardRing(new ArrayList<>());
+    private volatile boolean publishesScores = ROUTER.isEmpty();
+    // open once the router has answered and the ring is known
+    private final CountDownLatch answered = new CountDownLatch(1);
+
+    // report to the router from now on and return once it has answered, the address defaults to
+    // localhost and the server's port
+    public void start(int port, IntSupplier connections) {
+        if (ROUTER.isEmpty()) return;
+        address = System.getProperty("joker.shard", "localhost:" + port);
+        InetSocketAddress router = ShardRouter.parseAddress(ROUTER);
+        Thread thread = new Thread(() -> run(router, connections), "shard-link");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Shard " + address + " reporting to router " + ROUTER);
+        try {
+            while (!answered.await(5, TimeUnit.SECONDS)) {
+                System.out.println("Waiting for router " + ROUTER + " to answer...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(InetSocketAddress router, IntSupplier connections) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(REPORT_MILLIS);
+            byte[] buffer = new byte[8192];
+            while (true) {
+                long next = System.currentTimeMillis() + REPORT_MILLIS;
+                byte[] report = encodeReport(connections.getAsInt());
+                socket.send(new DatagramPacket(report, report.length, router));
+                try {
+                    DatagramPacket answer = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(answer);
+                    readAnswer(new DataInputStream(new ByteArrayInputStream(answer.getData(), 0, answer.getLength())));
+                } catch (SocketTimeoutException e) {
+                    // the router is gone or slow, keep the last ring
+                }
+                long wait = next - System.currentTimeMillis();
+                if (wait > 0) Thread.sleep(wait);
+            }
+        } catch (IOException e) {
+            System.out.println("Shard link to the router failed: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private byte[] encodeReport(int connections) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ShardRouter.REPORT_MAGIC);
+        out.writeUTF(address);
+        out.writeInt(connections);
+        return bytes.toByteArray();
+    }
+
+    // MAGIC, whether this shard multicasts the scores, then the shards of the ring
+    private void readAnswer(DataInputStream in) throws IOException {
+        if (in.readInt() != ShardRouter.REPORT_MAGIC) return;
+        boolean publisher = in.readBoolean();
+        int count = in.readUnsignedByte();
+        List<String> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(in.readUTF());
+        }
+        if (!ring.shards().equals(shards)) {
+            if (!shards.contains(address)) {
+                System.out.println("The router does not know shard " + address + ", check -Djoker.shard");
+            }
+            ring = new ShardRing(shards);
+        }
+        if (publisher != publishesScores) {
+            System.out.println(publisher ? "This shard multicasts the top scores now." : "Another shard multicasts the top scores now.");
+        }
+        publishesScores = publisher;
+        answered.countDown();
+    }
+
+    public long newRoomId() {
+        return ring.newRoomId(address);
+    }
+
+    public String newPlayerId() {
+        return ring.newPlayerId(address);
+    }
+
+    // only one shard of a ring multicasts, they all read the same score database
+    public boolean publishesScores() {
+        return publishesScores;
+    }
+}
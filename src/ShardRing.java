@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Consistent hashing of room and player ids onto the shards, JokerServer processes named by
+ * their "host:port". Every shard has VIRTUAL_NODES points on a ring of 64-bit hashes and an id
+ * belongs to the first point at or after its own hash, so adding or removing a shard only moves
+ * the ids next to its points. A shard mints its ids on its own part of the ring, which lets the
+ * router send a reconnecting player or a spectator of a room to the shard that has it without
+ * keeping a table of rooms, see ShardRouter.
+ * The router and every shard build the ring from the same list, so they agree on every owner.
+ */
+public final class ShardRing {
+    private static final int VIRTUAL_NODES = 64;
+
+    private final List<String> shards;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    public ShardRing(List<String> shards) {
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (String shard : this.shards) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+    // in the order the router was given them
+    public List<String> shards() {
+        return shards;
+    }
+
+    public boolean contains(String shard) {
+        return shards.contains(shard);
+    }
+
+    // the shard a room id belongs to, null for an empty ring
+    public String roomOwner(long roomId) {
+        return owner(mix(roomId));
+    }
+
+    // the shard a player id belongs to, null for an empty ring
+    public String playerOwner(String playerId) {
+        return owner(hash(playerId));
+    }
+
+    // a positive room id that belongs to self, any one if self is not on the ring
+    public long newRoomId(String self) {
+        while (true) {
+            long id = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+            if (!contains(self) || self.equals(roomOwner(id))) return id;
+        }
+    }
+
+    // a player id that belongs to self, any one if self is not on the ring
+    public String newPlayerId(String self) {
+        while (true) {
+            String id = UUID.randomUUID().toString();
+            if (!contains(self) || self.equals(playerOwner(id))) return id;
+        }
+    }
+
+    private String owner(long hash) {
+        if (points.isEmpty()) return null;
+        Map.Entry<Long, String> point = points.ceilingEntry(hash);
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    // FNV-1a over the chars, then mixed; the same in every process, unlike String.hashCode's 32 bits
+    static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    // the finalizer of MurmurHash3, spreads ids that differ in a few bits over the whole ring
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
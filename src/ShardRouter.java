@@ -0,0 +1,282 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Front door for several JokerServer processes, the shards, so the game scales out and not only up.
+ * The router reads a client's HELLO and picks a shard for it:
+ *   a spectator of a given room, or a player coming back with an earlier player id, goes to the
+ *   shard that owns the id on the ShardRing, which is the shard that minted it;
+ *   anyone else goes to the live shard with the fewest connections, GameRoom.MAX_PLAYERS new
+ *   players in a row, so players arriving together meet in a lobby of the same shard.
+ * A client from Protocol.SHARDS on is answered with 'R', the shard's host and port, and says HELLO
+ * there instead, so the router is never on the game's path. An older client does not know 'R', the
+ * router connects to the shard for it and copies the bytes both ways.
+ * Shards report their load by UDP to the router's port every second, see ShardLink, and a shard
+ * silent for SHARD_TIMEOUT_MILLIS gets no new clients. The router answers every report with the
+ * ring and whether that shard multicasts the top scores for MulticastScoreboard: the first live
+ * shard of the list, so the scoreboard gets one list however many shards there are, and another
+ * shard takes over when that one goes away. The shards share the score database, see Database.
+ *
+ * On one box over loopback, each shard with journal and snapshot directories of its own:
+ *   java ShardRouter 12345 localhost:12346 localhost:12347
+ *   java -Djoker.router=localhost:12345 -Djoker.journal.dir=journal-1 -Djoker.snapshot.dir=snapshots-1 JokerServer 12346 nio
+ *   java -Djoker.router=localhost:12345 -Djoker.journal.dir=journal-2 -Djoker.snapshot.dir=snapshots-2 JokerServer 12347 nio
+ * and the clients connect to port 12345.
+ */
+public class ShardRouter {
+    // first int of a load report and of the router's answer
+    static final int REPORT_MAGIC = 0x4A4B4C44;
+    // set with -Djoker.router.shardTimeoutMillis
+    private static final int SHARD_TIMEOUT_MILLIS = Integer.getInteger("joker.router.shardTimeoutMillis", 3000);
+
+    private final ShardRing ring;
+    // by address, in the order of the list the router was given
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+    // the shard taking new players and how many it has been sent, see choose
+    private Shard filling;
+    private int fillingSent;
+    // a thread per handshake, and two per proxied legacy client
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+
+    private static final class Shard {
+        final String address;
+        final InetSocketAddress socketAddress;
+        // 0 until the shard reports
+        volatile long lastReport;
+        volatile int connections;
+        // clients sent there since its last report, so a burst of clients is not all sent to one shard
+        final AtomicInteger sent = new AtomicInteger();
+
+        Shard(String address) {
+            this.address = address;
+            this.socketAddress = parseAddress(address);
+        }
+
+        boolean isLive(long now) {
+            return lastReport != 0 && now - lastReport < SHARD_TIMEOUT_MILLIS;
+        }
+
+        int load() {
+            return connections + sent.get();
+        }
+    }
+
+    public ShardRouter(int port, List<String> addresses) throws IOException {
+        ring = new ShardRing(addresses);
+        for (String address : addresses) {
+            shards.put(address, new Shard(address));
+        }
+        DatagramSocket reports = new DatagramSocket(port);
+        Thread reportThread = new Thread(() -> receiveReports(reports), "shard-reports");
+        reportThread.setDaemon(true);
+        reportThread.start();
+        ServerSocket srvSocket = new ServerSocket(port);
+        System.out.println("Router started on port: " + port + " for shards " + addresses);
+        while (true) {
+            Socket clientSocket = srvSocket.accept();
+            connections.execute(() -> route(clientSocket));
+        }
+    }
+
+    // "host:port"
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Not host:port: " + address);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    // MAGIC, the shard's address and its connections; answered with MAGIC, whether it
+    // multicasts the scores, and the shards of the ring
+    private void receiveReports(DatagramSocket socket) {
+        byte[] buffer = new byte[512];
+        while (true) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), 0, packet.getLength()));
+                if (in.readInt() != REPORT_MAGIC) continue;
+                String address = in.readUTF();
+                int shardConnections = in.readInt();
+                long now = System.currentTimeMillis();
+                Shard shard = shards.get(address);
+                if (shard != null) {
+                    if (!shard.isLive(now)) {
+                        System.out.println("Shard " + address + " is up.");
+                    }
+                    shard.connections = shardConnections;
+                    shard.sent.set(0);
+                    shard.lastReport = now;
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(REPORT_MAGIC);
+                out.writeBoolean(shard != null && shard == scorePublisher(now));
+                out.writeByte(ring.shards().size());
+                for (String member : ring.shards()) {
+                    out.writeUTF(member);
+                }
+                socket.send(new DatagramPacket(bytes.toByteArray(), bytes.size(), packet.getSocketAddress()));
+            } catch (IOException e) {
+                // a bad report, the next one comes in a second
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // the one shard that multicasts the top scores
+    private Shard scorePublisher(long now) {
+        for (Shard shard : shards.values()) {
+            if (shard.isLive(now)) return shard;
+        }
+        return null;
+    }
+
+    // the owner of the id the client asks for if it is live, else the shard filling up with new players,
+    // which changes to the live shard with the least load every MAX_PLAYERS players; null if no shard is live
+    private synchronized Shard choose(String owner) {
+        long now = System.currentTimeMillis();
+        Shard preferred = owner != null ? shards.get(owner) : null;
+        if (preferred != null && preferred.isLive(now)) return preferred;
+        if (filling == null || !filling.isLive(now) || fillingSent >= GameRoom.MAX_PLAYERS) {
+            filling = leastLoaded(now);
+            fillingSent = 0;
+        }
+        fillingSent++;
+        return filling;
+    }
+
+    private Shard leastLoaded(long now) {
+        Shard least = null;
+        for (Shard shard : shards.values()) {
+            if (shard.isLive(now) && (least == null || shard.load() < least.load())) {
+                least = shard;
+            }
+        }
+        return least;
+    }
+
+    // read the handshake, parsed like JokerServer.serve does, and send the client on to its shard
+    private void route(Socket clientSocket) {
+        try {
+            clientSocket.setSoTimeout(Heartbeat.READ_IDLE_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            // the handshake again, for the shard of a proxied client
+            ByteArrayOutputStream hello = new ByteArrayOutputStream(64);
+            DataOutputStream copy = new DataOutputStream(hello);
+            int first = in.readUnsignedShort();
+            copy.writeShort(first);
+            int version = Protocol.LEGACY;
+            String previousId = "";
+            boolean watch = false;
+            long watchRoomId = 0;
+            if (first == Protocol.HELLO) {
+                version = in.readUnsignedByte();
+                copy.writeByte(version);
+                copy.writeUTF(in.readUTF());
+                if (version >= Protocol.RECONNECT) {
+                    previousId = in.readUTF();
+                    copy.writeUTF(previousId);
+                }
+                if (version >= Protocol.SPECTATORS) {
+                    int role = in.readUnsignedByte();
+                    watch = role == Protocol.WATCH;
+                    watchRoomId = in.readLong();
+                    copy.writeByte(role);
+                    copy.writeLong(watchRoomId);
+                }
+            } else {
+                byte[] name = new byte[first];
+                in.readFully(name);
+                copy.write(name);
+            }
+
+            Shard shard = choose(watch && watchRoomId != 0 ? ring.roomOwner(watchRoomId)
+                    : previousId.isEmpty() ? null : ring.playerOwner(previousId));
+            if (shard == null) {
+                System.out.println("No shard is up, closing client " + clientSocket.getInetAddress());
+                clientSocket.close();
+                return;
+            }
+            shard.sent.incrementAndGet();
+            if (version >= Protocol.SHARDS) {
+                // 'R' is unframed like the 'I' and 'V' it stands in for
+                DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+                out.writeByte('R');
+                out.writeUTF(shard.socketAddress.getHostString());
+                out.writeShort(shard.socketAddress.getPort());
+                out.flush();
+                clientSocket.close();
+            } else {
+                proxy(clientSocket, in, shard, hello.toByteArray());
+            }
+        } catch (IOException e) {
+            System.out.println("Client lost before reaching a shard: " + clientSocket.getInetAddress());
+            closeQuietly(clientSocket);
+        }
+    }
+
+    private void proxy(Socket clientSocket, InputStream fromClient, Shard shard, byte[] hello) throws IOException {
+        Socket shardSocket = new Socket();
+        try {
+            shardSocket.connect(shard.socketAddress);
+            shardSocket.setTcpNoDelay(true);
+            clientSocket.setTcpNoDelay(true);
+            // the shard's heartbeat looks after idle clients from here on
+            clientSocket.setSoTimeout(0);
+            shardSocket.getOutputStream().write(hello);
+        } catch (IOException e) {
+            closeQuietly(shardSocket);
+            throw e;
+        }
+        connections.execute(() -> {
+            try {
+                pump(shardSocket.getInputStream(), shardSocket, clientSocket);
+            } catch (IOException e) {
+                closeQuietly(shardSocket);
+                closeQuietly(clientSocket);
+            }
+        });
+        pump(fromClient, clientSocket, shardSocket);
+    }
+
+    // copy until either side closes, then close both so the copy the other way ends too
+    private static void pump(InputStream in, Socket from, Socket to) {
+        byte[] buffer = new byte[8192];
+        try {
+            OutputStream out = to.getOutputStream();
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // either side went away
+        } finally {
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    // usage: ShardRouter port host:port...
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: ShardRouter port host:port...");
+            return;
+        }
+        new ShardRouter(Integer.parseInt(args[0]), Arrays.asList(args).subList(1, args.length));
+    }
+}
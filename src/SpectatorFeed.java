@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The frames a room's spectators get, encoded once for all of them.
+ * The room writes everything it broadcasts to its players into source() as well, encoded for
+ * Protocol.VERSION like for one more player, and publishes it at the end of every event into a
+ * ring of the last RING_FRAMES chunks. A spectator's Outbox reads the ring from its own position
+ * on the spectator's connection, see Outbox.follow, so an update costs the room one encode and a
+ * wake-up per spectator however many are watching.
+ * A spectator a whole ring behind has missed frames; its outbox stops reading and the room sends
+ * it the game again, after which it reads on from the ring's head.
+ */
+public class SpectatorFeed {
+    // set with -Djoker.spectator.ringFrames, rounded down to a power of two
+    public static final int RING_FRAMES = Integer.highestOneBit(Math.max(2, Integer.getInteger("joker.spectator.ringFrames", 1024)));
+    // what frame() answers for a position the ring has moved past
+    static final byte[] LAPPED = new byte[0];
+
+    // a published chunk with its position; immutable, so readers racing the room see a whole one
+    private static final class Frame {
+        final long position;
+        final byte[] bytes;
+
+        Frame(long position, byte[] bytes) {
+            this.position = position;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Frame[] ring = new Frame[RING_FRAMES];
+    // position of the next chunk, a chunk is in the ring before head moves past it
+    private volatile long head;
+    // the room writes the spectators' frames here, it is never written to a connection
+    private final Outbox source = new Outbox(() -> { }, () -> { });
+    // the spectators' outboxes, only touched inside the room's mailbox
+    private final List<Outbox> followers = new ArrayList<>();
+
+    public Outbox source() {
+        return source;
+    }
+
+    // the outbox reads on from the next chunk published; onLapped runs if it falls a ring behind
+    public void follow(Outbox outbox, Runnable onLapped) {
+        outbox.follow(this, head, onLapped);
+        if (!followers.contains(outbox)) {
+            followers.add(outbox);
+        }
+    }
+
+    public void unfollow(Outbox outbox) {
+        followers.remove(outbox);
+    }
+
+    public boolean hasFollowers() {
+        return !followers.isEmpty();
+    }
+
+    // publish what the room wrote to source() since the last call and wake the spectators; room only
+    public void publish() {
+        source.flush();
+        boolean published = false;
+        byte[] bytes;
+        while ((bytes = source.poll()) != null) {
+            long position = head;
+            ring[(int) position & (ring.length - 1)] = new Frame(position, bytes);
+            head = position + 1;
+            published = true;
+        }
+        if (published) {
+            for (Outbox follower : followers) {
+                follower.wake();
+            }
+        }
+    }
+
+    // the chunk at position, null if it is not published yet, LAPPED if the ring has moved past it; any thread
+    byte[] frame(long position) {
+        if (position >= head) return null;
+        Frame frame = ring[(int) position & (ring.length - 1)];
+        return frame.position == position ? frame.bytes : LAPPED;
+    }
+}